@@ -1,46 +1,87 @@
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
 import java.lang.Math;
 
 public class A2_G13_t1 {
+    // seed of every random stream
+    public static final long SEED = 42;
     /* DATA STRUCTURES */
-    // point class for representing 2d points
-    public static class point {
-        public int label = 0;
-        public double x;
-        public double y;
+    // columnar store of d-dimensional points; coordinates live row-major in one flat array
+    // (point i occupies coord[i*d .. i*d+d-1]) and labels in a parallel int array
+    public static class dataset {
+        public int n = 0;
+        public final int d;
+        public double[] coord;
+        public int[] label;
         // constructor
-        public point(double x, double y) {
-            this.x = x;
-            this.y = y;
-        }
-        public point(point other) {
-            this.x = other.x;
-            this.y = other.y;
-        }
-        // accessor; returns squared distance with other point instance
-        public double dist_sq(point other) {
-            double x_diff = other.x - this.x;
-            double y_diff = other.y - this.y;
-            return x_diff*x_diff + y_diff*y_diff;
-        }
-        // accessor; compare x, y value with other point instance
-        public boolean compare(point other) {
-            double x_diff = this.x - other.x;
-            if (x_diff < 0) x_diff = -x_diff;
-            double y_diff = this.y - other.y;
-            if (y_diff < 0) y_diff = -y_diff;
-            // returns true if difference is low enough
-            return x_diff < 0.001 && y_diff < 0.001;
-        }
-        // modifier; change x, y value same as other point instance
-        public void change(point other) {
-            this.x = other.x;
-            this.y = other.y;
+        public dataset(int capacity, int d) {
+            this.d = d;
+            coord = new double[Math.max(capacity, 1)*d];
+            label = new int[Math.max(capacity, 1)];
+        }
+        // accessor; bytes held per point by the coordinate and label arrays
+        public int bytes_per_point() {
+            return Double.BYTES*d + Integer.BYTES;
+        }
+        // accessor; a store sharing these coordinates but with labels of its own
+        public dataset view() {
+            dataset v = new dataset(1, d);
+            v.n = n;
+            v.coord = coord;
+            v.label = new int[label.length];
+            return v;
+        }
+        // modifier; append the d values of row starting at from, doubling the arrays when full
+        public void add(double[] row, int from) {
+            if (n == label.length) {
+                coord = Arrays.copyOf(coord, n*2*d);
+                label = Arrays.copyOf(label, n*2);
+            }
+            System.arraycopy(row, from, coord, n*d, d);
+            n++;
+        }
+        // modifier; append point j of other store
+        public void add(dataset other, int j) {
+            add(other.coord, j*d);
+        }
+        // accessor; returns squared distance between point i and point j of other store
+        public double dist_sq(int i, dataset other, int j) {
+            return KERNELS.dist_sq(coord, i*d, other.coord, j*d, d);
+        }
+        // modifier; change coordinates same as other store
+        public void change(dataset other) {
+            n = other.n;
+            System.arraycopy(other.coord, 0, coord, 0, n*d);
+        }
+        // accessor; coordinates in column-major order (dimension t of point i at t*n + i), reusing buf when it fits
+        public double[] transpose(double[] buf) {
+            if (buf == null || buf.length < n*d) buf = new double[n*d];
+            for (int i = 0; i < n; i++) {
+                for (int t = 0; t < d; t++) buf[t*n + i] = coord[i*d + t];
+            }
+            return buf;
         }
     }
     // min class
@@ -52,6 +93,269 @@ public class A2_G13_t1 {
             this.index = i;
         }
     }
+    // distance kernels; the scalar ones below, or the SIMD ones of A2_G13_t1_simd when the
+    // jdk.incubator.vector module is available
+    public interface kernels {
+        // squared distance between the d values at a[ai] and b[bi]
+        double dist_sq(double[] a, int ai, double[] b, int bi, int d);
+        // nearest of k centers to the point at p[pi]; the centers are given both row-major (c)
+        // and column-major (ct, dimension t of center j at t*k + j). Ties go to the lowest index
+        min nearest(double[] p, int pi, double[] c, double[] ct, int k, int d, min out);
+        // add the d values at p[pi] into sum[si]
+        void accumulate(double[] sum, int si, double[] p, int pi, int d);
+    }
+    public static class scalar_kernels implements kernels {
+        public double dist_sq(double[] a, int ai, double[] b, int bi, int d) {
+            double ret = 0;
+            for (int t = 0; t < d; t++) {
+                double diff = b[bi + t] - a[ai + t];
+                ret += diff*diff;
+            }
+            return ret;
+        }
+        public min nearest(double[] p, int pi, double[] c, double[] ct, int k, int d, min out) {
+            double min = dist_sq(p, pi, c, 0, d);
+            int idx = 0;
+            for (int j = 1; j < k; j++) {
+                double dist = dist_sq(p, pi, c, j*d, d);
+                if (dist < min) {
+                    min = dist;
+                    idx = j;
+                }
+            }
+            out.value = min;
+            out.index = idx;
+            return out;
+        }
+        public void accumulate(double[] sum, int si, double[] p, int pi, int d) {
+            for (int t = 0; t < d; t++) sum[si + t] += p[pi + t];
+        }
+    }
+    // kernels used by every distance computation
+    public static kernels KERNELS = new scalar_kernels();
+    // LOAD-KERNELS; the SIMD kernels if they were compiled and the vector module is present, else null
+    public static kernels LOAD_KERNELS () {
+        try {
+            return (kernels) Class.forName("A2_G13_t1_simd").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+    // per-cluster sums for calculating C.O.M(center of mass)
+    public static class sums {
+        public final int d;
+        public int[] num;
+        // coordinate sums, d per cluster
+        public double[] sum;
+        // squared distances of the points to the centers they were assigned to, for the inertia; summed
+        // point by point rather than expanded around the origin, which cancels when the coordinates
+        // are large next to the spread of a cluster
+        public double[] cost;
+        // point-to-center distance evaluations spent producing these sums
+        public long evaluations = 0;
+        // points whose label changed
+        public long changed = 0;
+        public sums(int k, int d) {
+            this.d = d;
+            num = new int[k];
+            sum = new double[k*d];
+            cost = new double[k];
+        }
+        // modifier; accumulate point i of points into cluster c, at squared distance dist from its center
+        public void add(dataset points, int i, int c, double dist) {
+            KERNELS.accumulate(sum, c*d, points.coord, i*d, d);
+            cost[c] += dist;
+            num[c] += 1;
+        }
+        // accessor; sum of squared distances of the accumulated points to the centers they were assigned to
+        public double inertia() {
+            double tot = 0;
+            for (double c : cost) tot += c;
+            return tot;
+        }
+        // modifier; move every non-empty cluster's center to its C.O.M, empty clusters keep theirs
+        public void centers(dataset clusters) {
+            for (int i = 0; i < num.length; i++) {
+                if (num[i] == 0) continue;
+                for (int t = 0; t < d; t++) clusters.coord[i*d + t] = sum[i*d + t]/num[i];
+            }
+        }
+        public void clear() {
+            Arrays.fill(num, 0);
+            Arrays.fill(sum, 0);
+            Arrays.fill(cost, 0);
+            evaluations = 0;
+            changed = 0;
+        }
+        // modifier; merge other partial sums into this one
+        public void add(sums other) {
+            for (int i = 0; i < num.length; i++) {
+                num[i] += other.num[i];
+                cost[i] += other.cost[i];
+            }
+            for (int i = 0; i < sum.length; i++) sum[i] += other.sum[i];
+            evaluations += other.evaluations;
+            changed += other.changed;
+        }
+    }
+    // command line options; positional arguments are <csv file> [k]
+    public static class options implements Cloneable {
+        public String path;
+        public int k = 0;
+        public int threads = 1;
+        public String engine = "lloyd";
+        public String seeding = "d2";
+        // mini-batch size, 0 loads the whole file
+        public int minibatch = 0;
+        public int epochs = 1;
+        // convergence: largest center shift, iteration cap and percentage of reassigned points
+        public double tol = 0.001;
+        public int max_iter = 300;
+        public double min_change = 0;
+        // range of k for a sweep, 0 when not sweeping
+        public int sweep_lo = 0;
+        public int sweep_hi = 0;
+        // number of concurrent restarts, each seeded with SEED + trial
+        public int n_init = 1;
+        // cancel restarts whose projected inertia stays above the first trial's (a heuristic, off by default)
+        public boolean prune_restarts = false;
+        // SIMD kernels: "auto" uses them when available, "off" forces the scalar ones
+        public String simd = "auto";
+        // coreset size, 0 clusters the raw points
+        public int coreset = 0;
+        // binary model file to write the final centers to, and one to score the csv with
+        public String save_model = null;
+        public String score = null;
+        // model file to warm-start from; the rows of the csv after its offset are ingested into it
+        public String update = null;
+        // benchmark the kernels instead of clustering
+        public boolean bench = false;
+        // nearest-center lookups through a KD-tree over the centers once k reaches CENTER_INDEX_MIN_K
+        public boolean center_index = false;
+        private ForkJoinPool pool;
+        public static options parse(String[] args) {
+            options opt = new options();
+            List<String> positional = new ArrayList<>();
+            for (int i = 0; i < args.length; i++) {
+                switch (args[i]) {
+                    case "--threads": opt.threads = Integer.parseInt(args[++i]); break;
+                    case "--engine": opt.engine = args[++i]; break;
+                    case "--seeding": opt.seeding = args[++i]; break;
+                    case "--minibatch": opt.minibatch = Integer.parseInt(args[++i]); break;
+                    case "--epochs": opt.epochs = Integer.parseInt(args[++i]); break;
+                    case "--tol": opt.tol = Double.parseDouble(args[++i]); break;
+                    case "--max-iter": opt.max_iter = Integer.parseInt(args[++i]); break;
+                    case "--min-change": opt.min_change = Double.parseDouble(args[++i]); break;
+                    case "--simd": opt.simd = args[++i]; break;
+                    case "--n-init": opt.n_init = Integer.parseInt(args[++i]); break;
+                    case "--coreset": opt.coreset = Integer.parseInt(args[++i]); break;
+                    case "--save-model": opt.save_model = args[++i]; break;
+                    case "--score": opt.score = args[++i]; break;
+                    case "--update": opt.update = args[++i]; break;
+                    case "--bench": opt.bench = true; break;
+                    case "--center-index": opt.center_index = true; break;
+                    case "--prune-restarts": opt.prune_restarts = true; break;
+                    case "--sweep": {
+                        String[] bounds = args[++i].split(":");
+                        opt.sweep_lo = Integer.parseInt(bounds[0]);
+                        opt.sweep_hi = Integer.parseInt(bounds[1]);
+                        if (opt.sweep_hi < Math.max(opt.sweep_lo, 1)) throw new IllegalArgumentException("empty sweep range: " + args[i]);
+                        break;
+                    }
+                    default:
+                        if (args[i].startsWith("--")) throw new IllegalArgumentException("unknown option: " + args[i]);
+                        positional.add(args[i]);
+                }
+            }
+            if (!opt.bench) opt.path = positional.get(0);
+            if (positional.size() == 2) opt.k = Integer.parseInt(positional.get(1));
+            if (opt.threads < 1) opt.threads = Runtime.getRuntime().availableProcessors();
+            return opt;
+        }
+        // accessor; fork/join pool with the requested parallelism, created on first use
+        public ForkJoinPool pool() {
+            if (pool == null) pool = new ForkJoinPool(threads);
+            return pool;
+        }
+        // accessor; the same options with a different thread count
+        public options with_threads(int t) {
+            try {
+                options o = (options) clone();
+                o.threads = t;
+                o.pool = null;
+                return o;
+            } catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+    // convergence controller; after every Lloyd pass it records the pass statistics and decides
+    // whether another pass can still move the centers
+    public static class convergence {
+        private final double tol;
+        private final int max_iter;
+        private final double min_change;
+        private final long start = System.nanoTime();
+        // print the statistics of every pass to stderr
+        public boolean log = true;
+        // reference inertia of another restart; the run gives up once it is projected not to beat it
+        public scoreboard board;
+        public boolean cancelled = false;
+        public int iteration = 0;
+        // statistics of the last pass
+        public double shift;
+        public long changed;
+        public double inertia = Double.NaN;
+        private double gain = Double.NaN;
+        public convergence(options opt) {
+            tol = opt.tol;
+            max_iter = opt.max_iter;
+            min_change = opt.min_change;
+        }
+        // prev are the centers the points were assigned to, clusters the centers updated from s;
+        // returns true when another pass is needed
+        public boolean next(dataset prev, dataset clusters, sums s, int n) {
+            iteration++;
+            shift = 0;
+            for (int i = 0; i < clusters.n; i++) {
+                shift = Math.max(shift, Math.sqrt(prev.dist_sq(i, clusters, i)));
+            }
+            changed = s.changed;
+            double before = inertia, last_gain = gain;
+            inertia = s.inertia();
+            gain = before - inertia;
+            long total = (long) n*clusters.n;
+            if (log) System.err.printf("iteration %d: shift %.6g, reassigned %d, inertia %.6g, %d ms, skipped %d of %d distance evaluations%n",
+                    iteration, shift, changed, inertia, (System.nanoTime() - start)/1000000, total - s.evaluations, total);
+            if (changed == 0 || shift < tol) return false;
+            if (iteration >= max_iter) return false;
+            if (board != null && board.beyond_reach(inertia, gain, last_gain)) {
+                cancelled = true;
+                return false;
+            }
+            return !(min_change > 0 && changed*100.0 < min_change*n);
+        }
+    }
+    // final inertia of the reference restart, fixed before the other restarts start, so whether a
+    // run is cancelled depends on its own passes only and never on how the pool schedules them
+    public static class scoreboard {
+        // a run is only cancelled when even its projected floor stays this far above the best
+        public static final double MARGIN = 0.01;
+        private final double best;
+        public scoreboard(double best) {
+            this.best = best;
+        }
+        // accessor; true when a run at the given inertia, whose last two passes gained gain and
+        // last_gain, would not get below the best if its gains kept shrinking at the same rate.
+        // This is a projection, not a bound: a run can still speed up and win after all
+        public boolean beyond_reach(double inertia, double gain, double last_gain) {
+            double target = best*(1 + MARGIN);
+            if (!(inertia > target) || !(gain >= 0) || !(last_gain > 0)) return false;
+            double rate = gain/last_gain;
+            if (rate >= 1) return false;
+            return inertia - gain*rate/(1 - rate) > target;
+        }
+    }
     // cluster class for final output
     public static class cluster {
         private List<String> pointIds;
@@ -69,61 +373,690 @@ public class A2_G13_t1 {
             System.out.println();
         }
     }
-    // compare two point lists
-    public static boolean compare (point[] p1, point[] p2) {
-        for (int i = 0; i < p1.length; i++) {
-            if (!p1[i].compare(p2[i])) return false;
+    // scores of a clustering; inertia and the k x c contingency table against the truth labels,
+    // from which the pair-counting and information-theoretic indices follow in O(k*c)
+    public static class evaluation {
+        public final int k;
+        public final int c;
+        public long n = 0;
+        public double inertia = 0;
+        // table[i*c + j]: points in cluster i with truth label j
+        public final long[] table;
+        // cluster sizes (row totals) and class sizes (column totals) of the table
+        public final long[] row;
+        public final long[] column;
+        // pair counts within cells, rows and columns
+        private double same, rows, cols;
+        public evaluation(int k, int c) {
+            this.k = k;
+            this.c = c;
+            table = new long[k*c];
+            row = new long[k];
+            column = new long[c];
         }
-        return true;
-    }
-    // copy point list to destination point list
-    public static void copylist (point[] dst, point[] src) {
-        for (int i = 0; i < dst.length; i++) {
-            dst[i].change(src[i]);
+        private static double pairs(long m) {
+            return m*(m - 1)/2.0;
+        }
+        // modifier; fills the row and column totals and the pair counts once the table is complete
+        public void totals() {
+            same = rows = cols = 0;
+            Arrays.fill(row, 0);
+            Arrays.fill(column, 0);
+            for (int i = 0; i < k; i++) {
+                for (int j = 0; j < c; j++) {
+                    long m = table[i*c + j];
+                    row[i] += m;
+                    column[j] += m;
+                    same += pairs(m);
+                }
+            }
+            for (long m : row) rows += pairs(m);
+            for (long m : column) cols += pairs(m);
+        }
+        // accessor; fraction of point pairs on which clustering and truth agree (same / different)
+        public double rand_index() {
+            double total = pairs(n);
+            return total == 0 ? 1 : (total - rows - cols + 2*same)/total;
+        }
+        // accessor; Rand index corrected for chance (Hubert and Arabie)
+        public double adjusted_rand_index() {
+            double expected = pairs(n) == 0 ? 0 : rows*cols/pairs(n);
+            double max = (rows + cols)/2;
+            return max == expected ? 1 : (same - expected)/(max - expected);
+        }
+        // accessor; mutual information normalized by the mean of the two entropies
+        public double normalized_mutual_information() {
+            double info = 0, hu = 0, hv = 0;
+            for (int i = 0; i < k; i++) {
+                long a = row[i];
+                if (a > 0) hu -= (double) a/n*Math.log((double) a/n);
+                for (int j = 0; j < c; j++) {
+                    long m = table[i*c + j];
+                    if (m > 0) info += (double) m/n*Math.log((double) m*n/((double) a*column[j]));
+                }
+            }
+            for (int j = 0; j < c; j++) {
+                long b = column[j];
+                if (b > 0) hv -= (double) b/n*Math.log((double) b/n);
+            }
+            return hu + hv == 0 ? 1 : info/((hu + hv)/2);
         }
     }
     /* ALGORITHM */
-    // SHORTEST-DISTANCE
-    public static min SHORTEST_DISTANCE (point p, point[] clusters, int size) {
-        double min = p.dist_sq(clusters[0]);
+    // SHORTEST-DISTANCE; nearest of the first size centers to point i, written into out
+    public static min SHORTEST_DISTANCE (dataset points, int i, dataset clusters, int size, min out) {
+        double min = points.dist_sq(i, clusters, 0);
         int idx = 0;
-        for (int i = 1; i < size; i++) {
-            double dist = p.dist_sq(clusters[i]);
+        for (int c = 1; c < size; c++) {
+            double dist = points.dist_sq(i, clusters, c);
             if (dist < min) {
                 min = dist;
-                idx = i;
+                idx = c;
+            }
+        }
+        out.value = min;
+        out.index = idx;
+        return out;
+    }
+    // ASSIGN; label points [lo, hi) with their nearest center and accumulate them into s;
+    // ct holds the centers column-major for the SIMD kernels
+    public static void ASSIGN (dataset points, int lo, int hi, dataset clusters, double[] ct, int k, sums s) {
+        min m = new min(0, 0);
+        int d = points.d;
+        for (int i = lo; i < hi; i++) {
+            int label = KERNELS.nearest(points.coord, i*d, clusters.coord, ct, k, d, m).index;
+            if (points.label[i] != label) s.changed++;
+            points.label[i] = label;
+            s.add(points, i, label, m.value);
+        }
+    }
+    // work on the point range [lo, hi), accumulating into s
+    public interface kernel {
+        void run(int lo, int hi, sums s);
+    }
+    // work on the point range [lo, hi) of the given chunk
+    public interface range {
+        void run(int chunk, int lo, int hi);
+    }
+    // fork/join runner; points are cut into a fixed number of chunks per thread,
+    // each chunk accumulates its own partial sums and the partials are merged in chunk order,
+    // so the result does not depend on how the pool schedules the chunks
+    public static class parallel_runner {
+        private static final int CHUNKS_PER_THREAD = 4;
+        private final ForkJoinPool pool;
+        private final int chunks;
+        private sums[] partial;
+        public parallel_runner(options opt) {
+            this.pool = opt.threads > 1 ? opt.pool() : null;
+            this.chunks = pool == null ? 1 : opt.threads*CHUNKS_PER_THREAD;
+        }
+        public void run(int n, int k, kernel f, sums total) {
+            total.clear();
+            if (chunks == 1) {
+                f.run(0, n, total);
+                return;
+            }
+            if (partial == null || partial[0].num.length != k || partial[0].d != total.d) {
+                partial = new sums[chunks];
+                for (int c = 0; c < chunks; c++) partial[c] = new sums(k, total.d);
+            }
+            each(n, chunks, (c, lo, hi) -> {
+                partial[c].clear();
+                f.run(lo, hi, partial[c]);
+            });
+            for (int c = 0; c < chunks; c++) total.add(partial[c]);
+        }
+        // run f on each of the given number of equal chunks of [0, n), in parallel when there is a pool
+        public void each(int n, int count, range f) {
+            int size = (n + count - 1)/count;
+            if (pool == null) {
+                for (int c = 0; c < count; c++) {
+                    int from = Math.min(c*size, n);
+                    f.run(c, from, Math.min(from + size, n));
+                }
+                return;
+            }
+            pool.invoke(new task(f, n, size, 0, count));
+        }
+        private static class task extends RecursiveAction {
+            private static final long serialVersionUID = 1L;
+            private final range f;
+            private final int n, size, lo, hi;
+            task(range f, int n, int size, int lo, int hi) {
+                this.f = f;
+                this.n = n;
+                this.size = size;
+                this.lo = lo;
+                this.hi = hi;
+            }
+            @Override
+            protected void compute() {
+                if (hi - lo == 1) {
+                    int from = Math.min(lo*size, n);
+                    f.run(lo, from, Math.min(from + size, n));
+                    return;
+                }
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new task(f, n, size, lo, mid), new task(f, n, size, mid, hi));
+            }
+        }
+    }
+    // assignment engine; labels every point with its nearest center and fills s with the cluster sums
+    public interface engine {
+        void assign(dataset points, dataset clusters, int k, sums s);
+    }
+    // ENGINE; the assignment engine selected by --engine
+    public static engine ENGINE (options opt) {
+        switch (opt.engine) {
+            case "lloyd": return new lloyd(opt);
+            case "hamerly": return new hamerly(opt);
+            case "kdtree": return new kdtree();
+            default: throw new IllegalArgumentException("unknown engine: " + opt.engine);
+        }
+    }
+    // below this many centers the linear scan beats walking a tree
+    public static final int CENTER_INDEX_MIN_K = 32;
+    // KD-tree over the current centers, rebuilt every iteration (k log k) and then shared read-only
+    // by the workers; nearest() descends to the query's cell first and only visits the other side
+    // of a split when the splitting plane is not farther than the best center found so far.
+    // Distances are summed like the scalar kernel and ties go to the lower index, so the labels
+    // are the ones of the linear scan
+    public static class center_index {
+        public static final int LEAF_SIZE = 4;
+        private dataset clusters;
+        private int d;
+        // node v covers order[lo[v] .. hi[v]-1]; its children are v+1 and right[v] (-1 for a leaf)
+        private int[] order;
+        private int[] lo;
+        private int[] hi;
+        private int[] right;
+        private int[] dim;
+        private double[] cut;
+        private int nodes;
+        public void build(dataset clusters, int k) {
+            this.clusters = clusters;
+            d = clusters.d;
+            if (order == null || order.length != k) {
+                order = new int[k];
+                int capacity = 2*k;
+                lo = new int[capacity];
+                hi = new int[capacity];
+                right = new int[capacity];
+                dim = new int[capacity];
+                cut = new double[capacity];
+            }
+            for (int j = 0; j < k; j++) order[j] = j;
+            nodes = 0;
+            split(0, k);
+        }
+        private int split(int from, int to) {
+            int v = nodes++;
+            lo[v] = from;
+            hi[v] = to;
+            right[v] = -1;
+            if (to - from <= LEAF_SIZE) return v;
+            // cut the widest dimension at the median center
+            int wide = 0;
+            double spread = -1;
+            for (int t = 0; t < d; t++) {
+                double a = Double.POSITIVE_INFINITY, b = Double.NEGATIVE_INFINITY;
+                for (int p = from; p < to; p++) {
+                    double c = clusters.coord[order[p]*d + t];
+                    a = Math.min(a, c);
+                    b = Math.max(b, c);
+                }
+                if (b - a > spread) {
+                    spread = b - a;
+                    wide = t;
+                }
+            }
+            if (spread <= 0) return v;
+            int median = (from + to) >>> 1;
+            int t = wide;
+            // k is small, a sort of the slice is cheap enough
+            Integer[] slice = new Integer[to - from];
+            for (int p = from; p < to; p++) slice[p - from] = order[p];
+            Arrays.sort(slice, (x, y) -> Double.compare(clusters.coord[x*d + t], clusters.coord[y*d + t]));
+            for (int p = from; p < to; p++) order[p] = slice[p - from];
+            dim[v] = t;
+            cut[v] = clusters.coord[order[median]*d + t];
+            split(from, median);
+            right[v] = split(median, to);
+            return v;
+        }
+        // accessor; nearest center to point i, counting the distances computed in s
+        public min nearest(dataset points, int i, min out, sums s) {
+            out.value = Double.POSITIVE_INFINITY;
+            out.index = -1;
+            search(points.coord, i*d, 0, out, s);
+            if (out.index < 0) {
+                // every distance was NaN; behave like the scalar kernel
+                out.index = 0;
+                out.value = points.dist_sq(i, clusters, 0);
+            }
+            return out;
+        }
+        private void search(double[] p, int pi, int v, min best, sums s) {
+            if (right[v] < 0) {
+                for (int q = lo[v]; q < hi[v]; q++) {
+                    int j = order[q];
+                    double dist = 0;
+                    for (int t = 0; t < d; t++) {
+                        double diff = clusters.coord[j*d + t] - p[pi + t];
+                        dist += diff*diff;
+                    }
+                    if (dist < best.value || (dist == best.value && j < best.index)) {
+                        best.value = dist;
+                        best.index = j;
+                    }
+                }
+                s.evaluations += hi[v] - lo[v];
+                return;
+            }
+            double gap = p[pi + dim[v]] - cut[v];
+            int near = gap < 0 ? v + 1 : right[v];
+            int far = gap < 0 ? right[v] : v + 1;
+            search(p, pi, near, best, s);
+            if (gap*gap <= best.value) search(p, pi, far, best, s);
+        }
+    }
+    // brute-force engine; every point is compared with every center
+    public static class lloyd implements engine {
+        private final parallel_runner runner;
+        private final center_index index;
+        private double[] ct;
+        public lloyd(options opt) {
+            runner = new parallel_runner(opt);
+            index = opt.center_index ? new center_index() : null;
+        }
+        public void assign(dataset points, dataset clusters, int k, sums s) {
+            if (index != null && k >= CENTER_INDEX_MIN_K) {
+                index.build(clusters, k);
+                runner.run(points.n, k, (lo, hi, part) -> {
+                    min m = new min(0, 0);
+                    for (int i = lo; i < hi; i++) {
+                        int label = index.nearest(points, i, m, part).index;
+                        if (points.label[i] != label) part.changed++;
+                        points.label[i] = label;
+                        part.add(points, i, label, m.value);
+                    }
+                }, s);
+                return;
+            }
+            ct = clusters.transpose(ct);
+            double[] columns = ct;
+            runner.run(points.n, k, (lo, hi, part) -> ASSIGN(points, lo, hi, clusters, columns, k, part), s);
+            s.evaluations = (long) points.n*k;
+        }
+    }
+    // Hamerly's engine; keeps an upper bound on the distance to the assigned center and one lower
+    // bound on the distance to every other center, and only searches points whose bounds overlap
+    public static class hamerly implements engine {
+        private final parallel_runner runner;
+        private double[] upper;
+        private double[] lower;
+        // centers seen by the previous call, how far each has moved since and half the distance to its closest other center
+        private dataset last;
+        private double[] move;
+        private double[] half;
+        public hamerly(options opt) {
+            runner = new parallel_runner(opt);
+        }
+        public void assign(dataset points, dataset clusters, int k, sums s) {
+            int n = points.n;
+            if (last == null) {
+                upper = new double[n];
+                lower = new double[n];
+                move = new double[k];
+                half = new double[k];
+                last = new dataset(k, clusters.d);
+                last.change(clusters);
+                runner.run(n, k, (lo, hi, part) -> {
+                    for (int i = lo; i < hi; i++) search(points, i, clusters, k, part);
+                }, s);
+                return;
+            }
+            // largest and second largest center movement bound the drop of every lower bound
+            int far = -1;
+            double move1 = 0, move2 = 0;
+            for (int j = 0; j < k; j++) {
+                move[j] = Math.sqrt(last.dist_sq(j, clusters, j));
+                if (move[j] > move1) {
+                    move2 = move1;
+                    move1 = move[j];
+                    far = j;
+                } else if (move[j] > move2) {
+                    move2 = move[j];
+                }
+            }
+            last.change(clusters);
+            for (int j = 0; j < k; j++) {
+                double closest = Double.POSITIVE_INFINITY;
+                for (int jj = 0; jj < k; jj++) {
+                    if (jj == j) continue;
+                    double d = clusters.dist_sq(j, clusters, jj);
+                    if (d < closest) closest = d;
+                }
+                half[j] = Math.sqrt(closest)/2;
+            }
+            final int argmax = far;
+            final double m1 = move1, m2 = move2;
+            runner.run(n, k, (lo, hi, part) -> {
+                for (int i = lo; i < hi; i++) {
+                    int a = points.label[i];
+                    double u = upper[i] + move[a];
+                    double l = lower[i] - (a == argmax ? m2 : m1);
+                    double m = Math.max(half[a], l);
+                    // the distance to the assigned center is needed for the inertia anyway, and it is the
+                    // tightest upper bound, so it is taken before the bounds are compared
+                    double dist = points.dist_sq(i, clusters, a);
+                    part.evaluations += 1;
+                    u = Math.sqrt(dist);
+                    if (u >= m) {
+                        search(points, i, clusters, k, part);
+                        continue;
+                    }
+                    upper[i] = u;
+                    lower[i] = l;
+                    part.add(points, i, a, dist);
+                }
+            }, s);
+        }
+        // full search of point i for its nearest and second nearest center; resets both bounds
+        private void search(dataset points, int i, dataset clusters, int k, sums s) {
+            double d1 = points.dist_sq(i, clusters, 0), d2 = Double.POSITIVE_INFINITY;
+            int idx = 0;
+            for (int c = 1; c < k; c++) {
+                double d = points.dist_sq(i, clusters, c);
+                if (d < d1) {
+                    d2 = d1;
+                    d1 = d;
+                    idx = c;
+                } else if (d < d2) {
+                    d2 = d;
+                }
+            }
+            s.evaluations += k;
+            if (points.label[i] != idx) s.changed++;
+            points.label[i] = idx;
+            upper[i] = Math.sqrt(d1);
+            lower[i] = Math.sqrt(d2);
+            s.add(points, i, idx, d1);
+        }
+    }
+    // filtering engine (Kanungo et al.); a KD-tree over the points, built on the first call and
+    // reused, stores per node the bounding box and the coordinate sums. Walking it with the list of
+    // candidate centers, a candidate is dropped from a subtree as soon as another one is closer to
+    // the whole box, and a subtree left with a single candidate is assigned at once from its sums;
+    // its cost follows from the scatter of the node about its own centroid (parallel-axis theorem).
+    // Labels follow lazily: owner[node] >= 0 means every point below it already has that label, so
+    // a subtree keeping its center costs O(1) and only points that change cluster are rewritten
+    public static class kdtree implements engine {
+        public static final int LEAF_SIZE = 16;
+        private int d;
+        private int nodes = 0;
+        // points of node v are perm[lo[v] .. hi[v]-1]; left child v+1's sibling is right[v], -1 for leaves
+        private int[] perm;
+        private int[] lo;
+        private int[] hi;
+        private int[] right;
+        private int[] owner;
+        private double[] box_min;
+        private double[] box_max;
+        private double[] sum;
+        // sum of squared distances of the points of a node to their centroid
+        private double[] scatter;
+        // candidate lists, one per depth
+        private int[][] cand;
+        private double[] mid;
+        public void assign(dataset points, dataset clusters, int k, sums s) {
+            if (perm == null) build(points);
+            if (cand == null || cand[0].length != k) {
+                cand = new int[depth(0) + 1][k];
+            }
+            for (int j = 0; j < k; j++) cand[0][j] = j;
+            s.clear();
+            filter(points, clusters, 0, 0, k, s);
+        }
+        private void build(dataset points) {
+            int n = points.n;
+            d = points.d;
+            int capacity = Math.max(1, 2*((n + LEAF_SIZE - 1)/LEAF_SIZE)*2);
+            perm = new int[n];
+            for (int i = 0; i < n; i++) perm[i] = i;
+            lo = new int[capacity];
+            hi = new int[capacity];
+            right = new int[capacity];
+            owner = new int[capacity];
+            box_min = new double[capacity*d];
+            box_max = new double[capacity*d];
+            sum = new double[capacity*d];
+            scatter = new double[capacity];
+            mid = new double[d];
+            split(points, 0, n);
+            Arrays.fill(owner, 0, nodes, -1);
+        }
+        // creates the node over perm[from .. to-1] and its subtree; returns its index
+        private int split(dataset points, int from, int to) {
+            int v = nodes++;
+            lo[v] = from;
+            hi[v] = to;
+            right[v] = -1;
+            Arrays.fill(box_min, v*d, v*d + d, Double.POSITIVE_INFINITY);
+            Arrays.fill(box_max, v*d, v*d + d, Double.NEGATIVE_INFINITY);
+            for (int p = from; p < to; p++) {
+                int i = perm[p];
+                for (int t = 0; t < d; t++) {
+                    double c = points.coord[i*d + t];
+                    box_min[v*d + t] = Math.min(box_min[v*d + t], c);
+                    box_max[v*d + t] = Math.max(box_max[v*d + t], c);
+                }
+                KERNELS.accumulate(sum, v*d, points.coord, i*d, d);
+            }
+            for (int p = from; p < to; p++) {
+                int i = perm[p];
+                for (int t = 0; t < d; t++) {
+                    double diff = points.coord[i*d + t] - sum[v*d + t]/(to - from);
+                    scatter[v] += diff*diff;
+                }
+            }
+            if (to - from <= LEAF_SIZE) return v;
+            // cut the widest dimension at the median
+            int wide = 0;
+            for (int t = 1; t < d; t++) {
+                if (box_max[v*d + t] - box_min[v*d + t] > box_max[v*d + wide] - box_min[v*d + wide]) wide = t;
+            }
+            if (box_max[v*d + wide] == box_min[v*d + wide]) return v;
+            int median = (from + to) >>> 1;
+            select(points, from, to, median, wide);
+            split(points, from, median);
+            right[v] = split(points, median, to);
+            return v;
+        }
+        // partially sorts perm[from .. to-1] on dimension t so that position kth holds its median
+        private void select(dataset points, int from, int to, int kth, int t) {
+            int l = from, r = to - 1;
+            while (l < r) {
+                double pivot = points.coord[perm[(l + r) >>> 1]*d + t];
+                int i = l, j = r;
+                while (i <= j) {
+                    while (points.coord[perm[i]*d + t] < pivot) i++;
+                    while (points.coord[perm[j]*d + t] > pivot) j--;
+                    if (i <= j) {
+                        int tmp = perm[i];
+                        perm[i++] = perm[j];
+                        perm[j--] = tmp;
+                    }
+                }
+                if (kth <= j) r = j;
+                else if (kth >= i) l = i;
+                else return;
+            }
+        }
+        private int depth(int v) {
+            if (right[v] < 0) return 0;
+            return 1 + Math.max(depth(v + 1), depth(right[v]));
+        }
+        // filters the m candidates of level depth down the subtree of v
+        private void filter(dataset points, dataset clusters, int v, int depth, int m, sums s) {
+            int[] z = cand[depth];
+            if (m == 1) {
+                whole(points, clusters, v, z[0], s);
+                return;
+            }
+            if (owner[v] >= 0) {
+                // the node is being split up, its children inherit its label
+                if (right[v] >= 0) {
+                    owner[v + 1] = owner[v];
+                    owner[right[v]] = owner[v];
+                }
+                owner[v] = -1;
+            }
+            if (right[v] < 0) {
+                leaf(points, clusters, v, z, m, s);
+                return;
+            }
+            // the candidate closest to the middle of the box
+            for (int t = 0; t < d; t++) mid[t] = (box_min[v*d + t] + box_max[v*d + t])/2;
+            int best = z[0];
+            double best_dist = KERNELS.dist_sq(mid, 0, clusters.coord, best*d, d);
+            for (int j = 1; j < m; j++) {
+                double dist = KERNELS.dist_sq(mid, 0, clusters.coord, z[j]*d, d);
+                if (dist < best_dist) {
+                    best_dist = dist;
+                    best = z[j];
+                }
+            }
+            s.evaluations += m;
+            // keep the candidates that are closer than best to some corner of the box
+            int[] next = cand[depth + 1];
+            int kept = 0;
+            for (int j = 0; j < m; j++) {
+                if (z[j] == best || !farther(clusters, z[j], best, v)) next[kept++] = z[j];
+            }
+            s.evaluations += 2L*(m - 1);
+            if (kept == 1) {
+                whole(points, clusters, v, best, s);
+                return;
+            }
+            // children only write deeper levels, so next is still intact for the right one
+            filter(points, clusters, v + 1, depth + 1, kept, s);
+            filter(points, clusters, right[v], depth + 1, kept, s);
+        }
+        // true when center a is at least as far as center b from every point of the box of v
+        private boolean farther(dataset clusters, int a, int b, int v) {
+            double da = 0, db = 0;
+            for (int t = 0; t < d; t++) {
+                double ca = clusters.coord[a*d + t], cb = clusters.coord[b*d + t];
+                // the corner of the box farthest in the direction from b to a
+                double corner = ca > cb ? box_max[v*d + t] : box_min[v*d + t];
+                da += (ca - corner)*(ca - corner);
+                db += (cb - corner)*(cb - corner);
+            }
+            return da > db || (da == db && a > b);
+        }
+        // assigns every point below v to center c from the node sums
+        private void whole(dataset points, dataset clusters, int v, int c, sums s) {
+            int size = hi[v] - lo[v];
+            double off = 0;
+            for (int t = 0; t < d; t++) {
+                s.sum[c*d + t] += sum[v*d + t];
+                double diff = sum[v*d + t]/size - clusters.coord[c*d + t];
+                off += diff*diff;
+            }
+            s.cost[c] += scatter[v] + size*off;
+            s.num[c] += size;
+            if (owner[v] == c) return;
+            for (int p = lo[v]; p < hi[v]; p++) {
+                int i = perm[p];
+                if (points.label[i] != c) {
+                    points.label[i] = c;
+                    s.changed++;
+                }
+            }
+            owner[v] = c;
+        }
+        // assigns the points of leaf v one by one among the m candidates z
+        private void leaf(dataset points, dataset clusters, int v, int[] z, int m, sums s) {
+            for (int p = lo[v]; p < hi[v]; p++) {
+                int i = perm[p];
+                int idx = z[0];
+                double min = points.dist_sq(i, clusters, idx);
+                for (int j = 1; j < m; j++) {
+                    double dist = points.dist_sq(i, clusters, z[j]);
+                    if (dist < min || (dist == min && z[j] < idx)) {
+                        min = dist;
+                        idx = z[j];
+                    }
+                }
+                s.evaluations += m;
+                if (points.label[i] != idx) s.changed++;
+                points.label[i] = idx;
+                s.add(points, i, idx, min);
             }
         }
-        return new min(min, idx);
+    }
+    // incremental D^2 sampler; keeps every point's squared distance to its closest chosen center
+    // and the prefix sums of those distances, both allocated once and updated in place
+    public static class d2_seeder {
+        private final dataset points;
+        private final double[] D;
+        private final double[] P;
+        // total and largest squared distance over all points
+        public double sum = 0;
+        public double max = 0;
+        public d2_seeder(dataset points) {
+            this.points = points;
+            D = new double[points.n];
+            P = new double[points.n];
+            Arrays.fill(D, Double.POSITIVE_INFINITY);
+        }
+        // modifier; fold center c of clusters into the running minimum, O(n)
+        public void update(dataset clusters, int c) {
+            sum = 0;
+            max = 0;
+            for (int j = 0; j < points.n; j++) {
+                double d = points.dist_sq(j, clusters, c);
+                if (d < D[j]) D[j] = d;
+                sum += D[j];
+                if (max < D[j]) max = D[j];
+                P[j] = sum;
+            }
+        }
+        // accessor; first point whose prefix sum reaches r, by binary search
+        public int sample(double r) {
+            int lo = 0, hi = points.n - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (P[mid] >= r) hi = mid;
+                else lo = mid + 1;
+            }
+            return lo;
+        }
     }
     // INITIALIZE-K-CENTERS
-    public static point[] INITIALIZE_K_CENTERS (List<point> points, Random rand, int estimate) {
-        int n = points.size();
+    public static dataset INITIALIZE_K_CENTERS (dataset points, Random rand, int estimate) {
+        int n = points.n;
         // set bound for clusters
         int bound = (int) Math.sqrt(n/2);
         if (estimate != 0) bound = estimate;
 
-        point[] clusters = new point[bound];
+        dataset clusters = new dataset(bound, points.d);
         // initialize first center of cluster as randomly chosen data point
-        clusters[0] = new point(points.get(rand.nextInt(n)));
+        clusters.add(points, rand.nextInt(n));
         // initialize the other centers 
         double criterion = 0;
         int k = 0;
         // estimate k at t-th decrease of criterion 
         int t = 3;
+        d2_seeder seeder = new d2_seeder(points);
 
         for (int i = 1; i < bound; i++) {
             k += 1;
-            // cumulative distribution
-            double[] P = new double[n];
-            double sum = 0;
-            double max = 0;
-            for (int j = 0; j < n; j++) {
-                double d = SHORTEST_DISTANCE(points.get(j), clusters, i).value;
-                sum += d;
-                if (max < d) max = d;
-                P[j] = sum;
-            }
+            // only the newest center can lower a point's distance
+            seeder.update(clusters, i - 1);
+            double sum = seeder.sum;
+            double max = seeder.max;
             if (estimate == 0) {
                 if (criterion > max/sum) {
                     t -= 1;
@@ -133,90 +1066,841 @@ public class A2_G13_t1 {
             } 
             // choose random number between 0 and sum
             double random = rand.nextDouble()*sum;
-            for (int j = 0; j < n; j++) {
-                if (P[j] >= random) {
-                    clusters[i] = new point(points.get(j));
-                    break;
+            clusters.add(points, seeder.sample(random));
+        }
+        // keep only the k estimated centers
+        if (estimate != 0) k = estimate;
+        clusters.n = k;
+        return clusters;
+    }
+    public static final int SEEDING_ROUNDS = 5;
+    public static final int SEEDING_BLOCK = 1 << 16;
+    // INITIALIZE-K-CENTERS-PARALLEL; k-means|| seeding. A few rounds each oversample about 2k
+    // candidates at once, every candidate is weighted by the points closest to it, and the
+    // weighted candidates are reduced to k centers. Points are cut into fixed-size blocks and
+    // each block draws from its own SplittableRandom stream split off SEED in block order, so
+    // the chosen centers do not depend on the thread count
+    public static dataset INITIALIZE_K_CENTERS_PARALLEL (dataset points, int k, long seed, parallel_runner runner) {
+        int n = points.n;
+        int blocks = (n + SEEDING_BLOCK - 1)/SEEDING_BLOCK;
+        SplittableRandom root = new SplittableRandom(seed);
+        // squared distance to and index of the closest candidate so far
+        double[] D = new double[n];
+        int[] nearest = new int[n];
+        Arrays.fill(D, Double.POSITIVE_INFINITY);
+        double[] cost = new double[blocks];
+
+        dataset cand = new dataset(SEEDING_ROUNDS*2*k + 1, points.d);
+        cand.add(points, root.nextInt(n));
+        double phi = fold(points, cand, 0, D, nearest, cost, runner);
+        double l = 2.0*k;
+        for (int r = 0; r < SEEDING_ROUNDS && phi > 0; r++) {
+            SplittableRandom[] streams = new SplittableRandom[blocks];
+            for (int b = 0; b < blocks; b++) streams[b] = root.split();
+            int[][] picked = new int[blocks][];
+            final double total = phi;
+            // keep each point with probability l*D/phi
+            runner.each(n, blocks, (b, lo, hi) -> {
+                int[] buf = new int[16];
+                int c = 0;
+                for (int j = lo; j < hi; j++) {
+                    if (streams[b].nextDouble()*total < l*D[j]) {
+                        if (c == buf.length) buf = Arrays.copyOf(buf, c*2);
+                        buf[c++] = j;
+                    }
                 }
+                picked[b] = Arrays.copyOf(buf, c);
+            });
+            int from = cand.n;
+            for (int b = 0; b < blocks; b++) {
+                for (int j : picked[b]) cand.add(points, j);
             }
+            phi = fold(points, cand, from, D, nearest, cost, runner);
         }
-        // transfer clusters' k centers to k length array
-        if (estimate != 0) k = estimate;
-        point[] adjusted = new point[k];
+        // weight every candidate by the number of points closest to it
+        double[] w = new double[cand.n];
+        for (int j = 0; j < n; j++) w[nearest[j]] += 1;
+        System.err.println("k-means|| candidates: " + cand.n);
+        return WEIGHTED_K_CENTERS(cand, w, k, root.split());
+    }
+    // fold candidates [from, cand.n) into each point's closest-candidate distance; returns the new total cost
+    private static double fold(dataset points, dataset cand, int from, double[] D, int[] nearest, double[] cost, parallel_runner runner) {
+        runner.each(points.n, cost.length, (b, lo, hi) -> {
+            double sum = 0;
+            for (int j = lo; j < hi; j++) {
+                for (int c = from; c < cand.n; c++) {
+                    double d = points.dist_sq(j, cand, c);
+                    if (d < D[j]) {
+                        D[j] = d;
+                        nearest[j] = c;
+                    }
+                }
+                sum += D[j];
+            }
+            cost[b] = sum;
+        });
+        double phi = 0;
+        for (double c : cost) phi += c;
+        return phi;
+    }
+    public static final int REDUCE_ITERATIONS = 20;
+    // WEIGHTED-K-CENTERS; reduce weighted candidates to k centers with weighted D^2 sampling
+    // followed by weighted Lloyd passes over the candidates
+    public static dataset WEIGHTED_K_CENTERS (dataset cand, double[] w, int k, SplittableRandom rand) {
+        int m = cand.n;
+        int d = cand.d;
+        dataset clusters = new dataset(k, d);
+        double[] D = new double[m];
+        Arrays.fill(D, Double.POSITIVE_INFINITY);
         for (int i = 0; i < k; i++) {
-            adjusted[i] = clusters[i];
+            // the first center is drawn by weight alone, the rest by weight times squared distance
+            double sum = 0;
+            for (int j = 0; j < m; j++) sum += i == 0 ? w[j] : w[j]*D[j];
+            double random = rand.nextDouble()*sum;
+            int pick = m - 1;
+            double acc = 0;
+            for (int j = 0; j < m; j++) {
+                acc += i == 0 ? w[j] : w[j]*D[j];
+                if (acc >= random && (i == 0 ? w[j] : w[j]*D[j]) > 0) {
+                    pick = j;
+                    break;
+                }
+            }
+            clusters.add(cand, pick);
+            for (int j = 0; j < m; j++) {
+                double dist = cand.dist_sq(j, clusters, i);
+                if (dist < D[j]) D[j] = dist;
+            }
+        }
+        WEIGHTED_LLOYD(cand, w, clusters, REDUCE_ITERATIONS, 0);
+        return clusters;
+    }
+    // WEIGHTED-LLOYD; Lloyd passes over weighted points until no label changes, no center moves
+    // farther than tol or max_iter passes; returns the number of passes
+    public static int WEIGHTED_LLOYD (dataset cand, double[] w, dataset clusters, int max_iter, double tol) {
+        int m = cand.n;
+        int d = cand.d;
+        int k = clusters.n;
+        min mn = new min(0, 0);
+        int it = 0;
+        while (it < max_iter) {
+            double[] sum = new double[k*d];
+            double[] w_sum = new double[k];
+            boolean changed = false;
+            for (int j = 0; j < m; j++) {
+                int label = SHORTEST_DISTANCE(cand, j, clusters, k, mn).index;
+                if (label != cand.label[j] || it == 0) changed = true;
+                cand.label[j] = label;
+                for (int t = 0; t < d; t++) sum[label*d + t] += w[j]*cand.coord[j*d + t];
+                w_sum[label] += w[j];
+            }
+            it++;
+            if (!changed) break;
+            double shift = 0;
+            for (int i = 0; i < k; i++) {
+                // an empty center keeps its position
+                if (w_sum[i] == 0) continue;
+                double moved = 0;
+                for (int t = 0; t < d; t++) {
+                    double c = sum[i*d + t]/w_sum[i];
+                    moved += (c - clusters.coord[i*d + t])*(c - clusters.coord[i*d + t]);
+                    clusters.coord[i*d + t] = c;
+                }
+                shift = Math.max(shift, Math.sqrt(moved));
+            }
+            if (shift < tol) break;
+        }
+        return it;
+    }
+    // SEED-CENTERS; initial centers with the seeding selected by --seeding
+    public static dataset SEED_CENTERS (dataset points, Random rand, long seed, int estimate, options opt) {
+        if (opt.seeding.equals("parallel") && estimate != 0) {
+            return INITIALIZE_K_CENTERS_PARALLEL(points, estimate, seed, new parallel_runner(opt));
         }
-        return adjusted;
+        if (!opt.seeding.equals("d2") && !opt.seeding.equals("parallel")) throw new IllegalArgumentException("unknown seeding: " + opt.seeding);
+        // k-means|| needs a fixed k, estimating k relies on the sequential D^2 criterion
+        if (opt.seeding.equals("parallel")) System.err.println("k-means|| seeding needs k, using D^2 seeding");
+        return INITIALIZE_K_CENTERS(points, rand, estimate);
     }
-    // K-MEANS++
-    public static point[] K_MEANS_PlusPlus (List<point> points, Random rand, int estimate) {
-        int n = points.size();
-        point[] clusters = INITIALIZE_K_CENTERS(points, rand, estimate);
-        int k = clusters.length;
+    // K-MEANS++; leaves the cluster index of every point in points.label
+    public static dataset K_MEANS_PlusPlus (dataset points, Random rand, int estimate, options opt) {
+        dataset clusters = SEED_CENTERS(points, rand, SEED, estimate, opt);
+        int k = clusters.n;
 
         if (estimate == 0) { 
             // estimated k
             System.out.println("estimated k: " + k);
         }
-
-        point[] prev = new point[k];
-        for (int i = 0; i < prev.length; i++) {
-            prev[i] = new point(clusters[i]);
+        LLOYD(points, clusters, opt, new convergence(opt));
+        return clusters;
+    }
+    // K-MEANS-CORESET; clusters a weighted summary of m << n points instead of the points themselves.
+    // The D^2 seeding gives a rough solution B, and every point is sampled with probability
+    // proportional to its sensitivity bound d(x, B)^2/cost(B) + 1/|cluster of x|, so far-off points
+    // and small clusters are kept, with weight 1/(m*p). Lloyd runs on the weighted sample, and one
+    // last pass labels all points against its centers
+    public static dataset K_MEANS_CORESET (dataset points, Random rand, int estimate, options opt) {
+        int n = points.n;
+        dataset clusters = SEED_CENTERS(points, rand, SEED, estimate, opt);
+        int k = clusters.n;
+        if (estimate == 0) System.out.println("estimated k: " + k);
+        engine assigner = new lloyd(opt);
+        sums s = new sums(k, points.d);
+        assigner.assign(points, clusters, k, s);
+        double cost = 0;
+        double[] P = new double[n];
+        for (int i = 0; i < n; i++) {
+            P[i] = points.dist_sq(i, clusters, points.label[i]);
+            cost += P[i];
+        }
+        // cumulative sensitivities for the binary-search sampler
+        double total = 0;
+        for (int i = 0; i < n; i++) {
+            total += (cost > 0 ? P[i]/cost : 0) + 1.0/s.num[points.label[i]];
+            P[i] = total;
         }
+        int m = opt.coreset;
+        int[] hits = new int[n];
+        SplittableRandom sampler = new SplittableRandom(SEED);
+        for (int r = 0; r < m; r++) {
+            double x = sampler.nextDouble()*total;
+            int lo = 0, hi = n - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (P[mid] >= x) hi = mid;
+                else lo = mid + 1;
+            }
+            hits[lo]++;
+        }
+        // repeated draws of a point fold into its weight
+        dataset core = new dataset(Math.min(m, n), points.d);
+        double[] w = new double[Math.min(m, n)];
+        for (int i = 0; i < n; i++) {
+            if (hits[i] == 0) continue;
+            double p = (P[i] - (i == 0 ? 0 : P[i - 1]))/total;
+            w[core.n] = hits[i]/(m*p);
+            core.add(points, i);
+        }
+        Arrays.fill(core.label, 0, core.n, -1);
+        int iterations = WEIGHTED_LLOYD(core, w, clusters, opt.max_iter, opt.tol);
+        double estimated = 0;
+        for (int j = 0; j < core.n; j++) estimated += w[j]*core.dist_sq(j, clusters, core.label[j]);
+        // labelling pass over all the points; the full cost is summed from the exact distance of every
+        // point to its center, not from the cluster sums
+        s.clear();
+        assigner.assign(points, clusters, k, s);
+        double actual = 0;
+        for (int i = 0; i < n; i++) actual += points.dist_sq(i, clusters, points.label[i]);
+        System.err.printf("coreset: %d distinct of %d points (%.3f%%), %d weighted Lloyd passes%n", core.n, n, 100.0*core.n/n, iterations);
+        System.err.printf("coreset cost %.6g vs full cost %.6g, approximation error %.4f%%%n",
+                estimated, actual, actual == 0 ? 0 : 100*Math.abs(estimated - actual)/actual);
+        return clusters;
+    }
+    // LLOYD; Lloyd passes from the given centers until control stops them, updating clusters in place
+    public static void LLOYD (dataset points, dataset clusters, options opt, convergence control) {
+        int n = points.n;
+        int k = clusters.n;
+        dataset prev = new dataset(k, points.d);
+        sums s = new sums(k, points.d);
+        engine assigner = ENGINE(opt);
+        // no point starts in a cluster, so the first pass counts every point as reassigned
+        Arrays.fill(points.label, 0, n, -1);
         do {
             // save cluster(centers) state
-            copylist(prev, clusters);
-            // for calculating C.O.M(center of mass)
-            int[] num = new int[k];
-            double[] x_sum = new double[k];
-            double[] y_sum = new double[k];
+            prev.change(clusters);
             // assign each points to cluster
-            for (int i = 0; i < n; i++) {
-                point cur = points.get(i);
-                int label = SHORTEST_DISTANCE(points.get(i), clusters, k).index;
-                cur.label = label;
-                x_sum[label] += cur.x;
-                y_sum[label] += cur.y;
-                num[label] += 1;
-            }
-            // update cluster k centers with C.O.M of each cluster
-            for (int i = 0; i < k; i++) {
-                clusters[i].x = x_sum[i]/num[i];
-                clusters[i].y = y_sum[i]/num[i];
+            assigner.assign(points, clusters, k, s);
+            // update cluster k centers with C.O.M of each cluster; an empty cluster keeps its center
+            s.centers(clusters);
+        } while (control.next(prev, clusters, s, n));
+    }
+    // K-MEANS-RESTARTS; opt.n_init independent K-means++ trials run concurrently, trial r seeded
+    // with SEED + r, and the one with the lowest inertia, measured point by point against its final
+    // centers, wins; ties go to the lower trial. The trials share the opt.threads workers.
+    // With opt.prune_restarts trial 0 runs first and the others stop once their projected inertia
+    // stays above its inertia; the result is still independent of scheduling, but a cancelled trial
+    // may have been the one to win. Leaves the labels of the winner in points.label
+    public static dataset K_MEANS_RESTARTS (dataset points, int estimate, options opt) {
+        int k = estimate;
+        if (k == 0) {
+            // every trial has to use the same k for their inertia to be comparable
+            k = INITIALIZE_K_CENTERS(points, new Random(SEED), 0).n;
+            System.out.println("estimated k: " + k);
+        }
+        int trials = opt.n_init;
+        dataset[] centers = new dataset[trials];
+        dataset[] labels = new dataset[trials];
+        convergence[] controls = new convergence[trials];
+        double[] inertia = new double[trials];
+        options single = opt.with_threads(1);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int r = 0; r < trials; r++) {
+            final int i = r;
+            final int kk = k;
+            labels[i] = points.view();
+            controls[i] = new convergence(opt);
+            controls[i].log = false;
+            tasks.add(() -> {
+                centers[i] = SEED_CENTERS(labels[i], new Random(SEED + i), SEED + i, kk, single);
+                LLOYD(labels[i], centers[i], single, controls[i]);
+                for (int p = 0; p < labels[i].n; p++) inertia[i] += labels[i].dist_sq(p, centers[i], labels[i].label[p]);
+                return null;
+            });
+        }
+        int first = 0;
+        if (opt.prune_restarts) {
+            // the reference trial finishes before the others start
+            RUN_ALL(opt, tasks.subList(0, 1));
+            scoreboard board = new scoreboard(inertia[0]);
+            for (int i = 1; i < trials; i++) controls[i].board = board;
+            first = 1;
+        }
+        RUN_ALL(opt, tasks.subList(first, trials));
+        int best = -1;
+        for (int i = 0; i < trials; i++) {
+            System.err.println("trial " + i + " (seed " + (SEED + i) + "): inertia " + inertia[i] + ", "
+                    + controls[i].iteration + " iterations" + (controls[i].cancelled ? ", cancelled" : ""));
+            if (controls[i].cancelled) continue;
+            if (best < 0 || inertia[i] < inertia[best]) best = i;
+        }
+        System.err.println("best trial: " + best);
+        System.arraycopy(labels[best].label, 0, points.label, 0, points.n);
+        return centers[best];
+    }
+    // RUN-ALL; runs the tasks on the pool and waits for all of them
+    public static void RUN_ALL (options opt, List<Callable<Void>> tasks) {
+        for (Future<Void> f : opt.pool().invokeAll(tasks)) {
+            try {
+                f.get();
+            } catch (InterruptedException | ExecutionException e) {
+                throw new IllegalStateException(e);
             }
-        } while (compare(prev, clusters));
-        return clusters;
+        }
+    }
+    // K-MEANS-SWEEP; clusters every k in [opt.sweep_lo, opt.sweep_hi] and picks the elbow. D^2 seeds
+    // for k are a prefix of the seeds for k+1, so a single seeding pass for the largest k serves
+    // every k, and the Lloyd runs for the different k share the pool, one run per worker. Each run's
+    // inertia is measured point by point against its final centers, as for the restarts.
+    // Prints the inertia table and leaves the labels of the elbow k in points.label
+    public static dataset K_MEANS_SWEEP (dataset points, Random rand, options opt) {
+        int lo = Math.max(opt.sweep_lo, 1), hi = opt.sweep_hi;
+        dataset seeds = INITIALIZE_K_CENTERS(points, rand, hi);
+        int runs = hi - lo + 1;
+        dataset[] centers = new dataset[runs];
+        dataset[] labels = new dataset[runs];
+        convergence[] controls = new convergence[runs];
+        double[] inertia = new double[runs];
+        options single = opt.with_threads(1);
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int r = 0; r < runs; r++) {
+            final int i = r;
+            centers[i] = new dataset(lo + i, points.d);
+            for (int c = 0; c < lo + i; c++) centers[i].add(seeds, c);
+            labels[i] = points.view();
+            controls[i] = new convergence(opt);
+            controls[i].log = false;
+            tasks.add(() -> {
+                LLOYD(labels[i], centers[i], single, controls[i]);
+                for (int p = 0; p < labels[i].n; p++) inertia[i] += labels[i].dist_sq(p, centers[i], labels[i].label[p]);
+                return null;
+            });
+        }
+        RUN_ALL(opt, tasks);
+        // elbow: the k farthest below the chord joining the two ends of the normalized inertia curve
+        double first = inertia[0], last = inertia[runs - 1];
+        int elbow = 0;
+        double best = -1;
+        System.out.println("k\tinertia\titerations");
+        for (int i = 0; i < runs; i++) {
+            System.out.println((lo + i) + "\t" + inertia[i] + "\t" + controls[i].iteration);
+            if (runs < 3 || first == last) continue;
+            double x = (double) i/(runs - 1);
+            double y = (inertia[i] - last)/(first - last);
+            double below = (1 - x) - y;
+            if (below > best) {
+                best = below;
+                elbow = i;
+            }
+        }
+        System.out.println("elbow k: " + (lo + elbow));
+        System.arraycopy(labels[elbow].label, 0, points.label, 0, points.n);
+        return centers[elbow];
     }
 
+    // DIMENSION; number of coordinates of the rows of a csv file (id, coordinates..., label)
+    public static int DIMENSION (String path) throws IOException {
+        try (BufferedReader file = new BufferedReader(new FileReader(path))) {
+            String temp = file.readLine();
+            return temp == null ? 2 : temp.split(",").length - 2;
+        }
+    }
+    // READ-BATCH; read up to capacity rows into batch (and their ids when ids is not null); returns false at end of file
+    public static boolean READ_BATCH (BufferedReader file, dataset batch, int capacity, List<String> ids) throws IOException {
+        batch.n = 0;
+        if (ids != null) ids.clear();
+        String temp;
+        double[] row = new double[batch.d];
+        while (batch.n < capacity && (temp = file.readLine()) != null) {
+            String[] line = temp.split(",");
+            if (ids != null) ids.add(line[0]);
+            for (int t = 0; t < row.length; t++) row[t] = Double.parseDouble(line[t + 1]);
+            batch.add(row, 0);
+        }
+        return batch.n > 0;
+    }
+    // MINI-BATCH-K-MEANS; streams the file in batches of opt.minibatch rows, so memory is bounded by
+    // the batch and the k centers instead of n. Centers are seeded with k-means++ on the first batch,
+    // then every batch moves each center toward the mean of its batch points with a per-center
+    // learning rate (batch count / total count seen by that center). A last pass labels every row
+    // and spools the ids into one temporary file per cluster, which are printed in cluster order.
+    public static void MINI_BATCH_K_MEANS (options opt) throws IOException {
+        int b = opt.minibatch;
+        dataset batch = new dataset(b, DIMENSION(opt.path));
+        System.err.println("memory bound: " + b + " batch points, " + batch.bytes_per_point() + " bytes each");
+        engine assigner = new lloyd(opt);
+        dataset clusters = null;
+        long[] seen = null;
+        sums s = null;
+        int k = opt.k;
+        for (int epoch = 0; epoch < opt.epochs; epoch++) {
+            try (BufferedReader file = new BufferedReader(new FileReader(opt.path))) {
+                while (READ_BATCH(file, batch, b, null)) {
+                    if (clusters == null) {
+                        clusters = INITIALIZE_K_CENTERS(batch, new Random(SEED), k);
+                        if (k == 0) {
+                            k = clusters.n;
+                            System.out.println("estimated k: " + k);
+                        }
+                        seen = new long[k];
+                        s = new sums(k, batch.d);
+                    }
+                    assigner.assign(batch, clusters, k, s);
+                    for (int i = 0; i < k; i++) {
+                        if (s.num[i] == 0) continue;
+                        seen[i] += s.num[i];
+                        double eta = (double) s.num[i]/seen[i];
+                        for (int t = 0; t < batch.d; t++) {
+                            int at = i*batch.d + t;
+                            clusters.coord[at] += eta*(s.sum[at]/s.num[i] - clusters.coord[at]);
+                        }
+                    }
+                }
+            }
+        }
+        if (clusters == null) return;
+        // label every row and spool its id into the file of its cluster
+        Path dir = Files.createTempDirectory("kmeans");
+        BufferedWriter[] out = new BufferedWriter[k];
+        for (int i = 0; i < k; i++) out[i] = Files.newBufferedWriter(dir.resolve(i + ".txt"));
+        List<String> ids = new ArrayList<>(b);
+        try (BufferedReader file = new BufferedReader(new FileReader(opt.path))) {
+            while (READ_BATCH(file, batch, b, ids)) {
+                assigner.assign(batch, clusters, k, s);
+                for (int i = 0; i < batch.n; i++) {
+                    out[batch.label[i]].write(ids.get(i));
+                    out[batch.label[i]].write(' ');
+                }
+            }
+        }
+        for (int i = 0; i < k; i++) out[i].close();
+        // print out clusters
+        for (int i = 0; i < k; i++) {
+            Path part = dir.resolve(i + ".txt");
+            System.out.print("Cluster #" + (i+1) + " => ");
+            System.out.flush();
+            Files.copy(part, System.out);
+            System.out.println();
+            System.out.println();
+            Files.delete(part);
+        }
+        Files.delete(dir);
+    }
+
+    // model file: magic, version, k, d as big-endian ints, then the k*d center coordinates as doubles.
+    // Version 2 follows them with the warm-start state: rows ingested and the byte offset in the csv
+    // after them (longs), then per cluster the point counts (longs), coordinate sums and squared norms.
+    // Version 3 stores the scatter of every cluster about its mean in place of the squared norms
+    public static final int MODEL_MAGIC = 0x4B4D4E53;
+    public static final int MODEL_VERSION = 3;
+    public static final int MODEL_HEADER = 16;
+    // rows parsed and assigned per scoring batch
+    public static final int SCORE_BATCH = 1 << 18;
+    // model class; centers and, when read from a version 2+ file, what was accumulated into them
+    public static class model {
+        public final dataset clusters;
+        public long rows = 0;
+        public long offset = 0;
+        public long[] num;
+        public double[] sum;
+        // sum of squared distances of the points of a cluster to their mean, kept up to date one point
+        // at a time (Welford), so it does not cancel the way squared norms do for large coordinates
+        public double[] scatter;
+        public model(dataset clusters) {
+            this.clusters = clusters;
+            int k = clusters.n;
+            num = new long[k];
+            sum = new double[k*clusters.d];
+            scatter = new double[k];
+        }
+        // accessor; squared distance of point i of points to the mean of cluster c
+        private double to_mean(dataset points, int i, int c) {
+            int d = clusters.d;
+            double dist = 0;
+            for (int t = 0; t < d; t++) {
+                double diff = points.coord[i*d + t] - sum[c*d + t]/num[c];
+                dist += diff*diff;
+            }
+            return dist;
+        }
+        // modifier; move point i of points from cluster from (-1 for none) to cluster to
+        public void move(dataset points, int i, int from, int to) {
+            int d = clusters.d;
+            if (from >= 0) {
+                long m = num[from];
+                scatter[from] = m <= 1 ? 0 : Math.max(0, scatter[from] - to_mean(points, i, from)*m/(m - 1));
+                for (int t = 0; t < d; t++) sum[from*d + t] -= points.coord[i*d + t];
+                num[from] -= 1;
+            }
+            long m = num[to];
+            if (m > 0) scatter[to] += to_mean(points, i, to)*m/(m + 1);
+            KERNELS.accumulate(sum, to*d, points.coord, i*d, d);
+            num[to] += 1;
+        }
+        // accessor; sum of squared distances of all ingested points to their centers
+        public double inertia() {
+            int d = clusters.d;
+            double tot = 0;
+            for (int i = 0; i < clusters.n; i++) {
+                if (num[i] == 0) continue;
+                double off = 0;
+                for (int t = 0; t < d; t++) {
+                    double diff = sum[i*d + t]/num[i] - clusters.coord[i*d + t];
+                    off += diff*diff;
+                }
+                tot += scatter[i] + num[i]*off;
+            }
+            return tot;
+        }
+    }
+    // SAVE-MODEL; written to a temporary file first and moved over path, so an update that fails
+    // halfway leaves the previous model intact
+    public static void SAVE_MODEL (String path, model m) throws IOException {
+        dataset clusters = m.clusters;
+        int k = clusters.n, d = clusters.d;
+        Path target = Path.of(path).toAbsolutePath();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MODEL_MAGIC);
+            out.writeInt(MODEL_VERSION);
+            out.writeInt(k);
+            out.writeInt(d);
+            for (int i = 0; i < k*d; i++) out.writeDouble(clusters.coord[i]);
+            out.writeLong(m.rows);
+            out.writeLong(m.offset);
+            for (int i = 0; i < k; i++) out.writeLong(m.num[i]);
+            for (int i = 0; i < k*d; i++) out.writeDouble(m.sum[i]);
+            for (int i = 0; i < k; i++) out.writeDouble(m.scatter[i]);
+        }
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+    // LOAD-MODEL; maps the model file and copies the centers (and state) out of the mapping
+    public static model LOAD_MODEL (String path) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(path), StandardOpenOption.READ)) {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (channel.size() < MODEL_HEADER || buf.getInt(0) != MODEL_MAGIC) throw new IOException(path + " is not a k-means model");
+            int version = buf.getInt(4);
+            if (version < 1 || version > MODEL_VERSION) throw new IOException(path + ": unsupported model version " + version);
+            int k = buf.getInt(8), d = buf.getInt(12);
+            long size = MODEL_HEADER + 8L*k*d;
+            if (version >= 2) size += 16 + 8L*k*(d + 2);
+            if (channel.size() < size) throw new IOException(path + ": truncated model");
+            dataset clusters = new dataset(k, d);
+            buf.position(MODEL_HEADER);
+            buf.asDoubleBuffer().get(clusters.coord, 0, k*d);
+            clusters.n = k;
+            model m = new model(clusters);
+            if (version == 1) {
+                // centers only; a warm start needs the state
+                m.num = null;
+                return m;
+            }
+            buf.position(MODEL_HEADER + 8*k*d);
+            m.rows = buf.getLong();
+            m.offset = buf.getLong();
+            buf.asLongBuffer().get(m.num);
+            buf.position(buf.position() + 8*k);
+            buf.asDoubleBuffer().get(m.sum);
+            buf.position(buf.position() + 8*k*d);
+            buf.asDoubleBuffer().get(m.scatter);
+            if (version == 2) {
+                // squared norms; the scatter about the mean is what is left after the mean's share, only as
+                // precise as the norms were, which is little for coordinates far from the origin
+                for (int i = 0; i < k; i++) {
+                    if (m.num[i] == 0) continue;
+                    double sq = 0;
+                    for (int t = 0; t < d; t++) sq += m.sum[i*d + t]*m.sum[i*d + t];
+                    m.scatter[i] = Math.max(0, m.scatter[i] - sq/m.num[i]);
+                }
+            }
+            return m;
+        }
+    }
+    // PARSE-ROWS; fills the first m points of batch (with room for them) and ids from csv lines id,x1..xd[,label],
+    // on the fork/join workers
+    public static void PARSE_ROWS (String[] lines, int m, dataset batch, String[] ids, parallel_runner runner, int chunks) {
+        int d = batch.d;
+        runner.each(m, chunks, (c, lo, hi) -> {
+            for (int i = lo; i < hi; i++) {
+                String line = lines[i];
+                int from = line.indexOf(',');
+                ids[i] = line.substring(0, from);
+                for (int t = 0; t < d; t++) {
+                    int to = line.indexOf(',', from + 1);
+                    if (to < 0) to = line.length();
+                    batch.coord[i*d + t] = Double.parseDouble(line.substring(from + 1, to));
+                    from = to;
+                }
+            }
+        });
+        batch.n = m;
+    }
+    // SCORE; labels the rows of the csv with the nearest center of the model, printing id,cluster.
+    // Rows are read in batches; parsing and assignment of a batch run on the fork/join workers
+    public static void SCORE (options opt) throws IOException {
+        dataset clusters = LOAD_MODEL(opt.score).clusters;
+        int k = clusters.n, d = clusters.d;
+        System.err.println("model: k = " + k + ", d = " + d);
+        dataset batch = new dataset(SCORE_BATCH, d);
+        String[] lines = new String[SCORE_BATCH];
+        String[] ids = new String[SCORE_BATCH];
+        parallel_runner runner = new parallel_runner(opt);
+        int chunks = opt.threads*4;
+        // centers are fixed, so only the labels are needed; no cluster sums are accumulated
+        double[] ct = clusters.transpose(null);
+        long scored = 0, assigning = 0, start = System.nanoTime();
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        try (BufferedReader file = new BufferedReader(new FileReader(opt.path), 1 << 16)) {
+            while (true) {
+                int m = 0;
+                String temp;
+                while (m < SCORE_BATCH && (temp = file.readLine()) != null) {
+                    if (!temp.isEmpty()) lines[m++] = temp;
+                }
+                if (m == 0) break;
+                PARSE_ROWS(lines, m, batch, ids, runner, chunks);
+                long t0 = System.nanoTime();
+                runner.each(m, chunks, (c, lo, hi) -> {
+                    min mn = new min(0, 0);
+                    for (int i = lo; i < hi; i++) batch.label[i] = KERNELS.nearest(batch.coord, i*d, clusters.coord, ct, k, d, mn).index;
+                });
+                assigning += System.nanoTime() - t0;
+                for (int i = 0; i < m; i++) {
+                    out.write(ids[i]);
+                    out.write(',');
+                    out.write(Integer.toString(batch.label[i] + 1));
+                    out.newLine();
+                }
+                scored += m;
+            }
+        }
+        out.flush();
+        long total = System.nanoTime() - start;
+        System.err.printf("scored %d points in %d ms: assignment %.1f M points/s, end to end %.1f M points/s (threads: %d)%n",
+                scored, total/1000000, scored*1e3/Math.max(assigning, 1), scored*1e3/Math.max(total, 1), opt.threads);
+    }
+    // passes over an appended batch; each one moves only batch points and recenters only the
+    // clusters they left or joined
+    public static final int REFINE_PASSES = 3;
+    // UPDATE-MODEL; warm start: ingests the rows appended to the csv since the model was saved
+    // into its cluster sums, refines, prints id,cluster for the new rows and saves the model.
+    // Older points stay summarized by the sums, so the cost depends on the batch, not on the file
+    public static void UPDATE_MODEL (options opt) throws IOException {
+        long start = System.nanoTime();
+        model state = LOAD_MODEL(opt.update);
+        if (state.num == null) throw new IOException(opt.update + " has no warm-start state, save it again with --save-model");
+        dataset clusters = state.clusters;
+        int k = clusters.n, d = clusters.d;
+        List<String> appended = new ArrayList<>();
+        long offset;
+        try (FileInputStream in = new FileInputStream(opt.path)) {
+            in.getChannel().position(state.offset);
+            BufferedReader file = new BufferedReader(new InputStreamReader(in), 1 << 16);
+            String temp;
+            while ((temp = file.readLine()) != null) {
+                if (!temp.isEmpty()) appended.add(temp);
+            }
+            offset = in.getChannel().position();
+        }
+        int m = appended.size();
+        dataset batch = new dataset(Math.max(m, 1), d);
+        String[] ids = new String[m];
+        PARSE_ROWS(appended.toArray(new String[0]), m, batch, ids, new parallel_runner(opt), opt.threads*4);
+        Arrays.fill(batch.label, 0, m, -1);
+        double[] ct = clusters.transpose(null);
+        boolean[] affected = new boolean[k];
+        int touched = 0, passes = 0;
+        min mn = new min(0, 0);
+        while (passes < REFINE_PASSES && m > 0) {
+            passes++;
+            boolean[] moved = new boolean[k];
+            long changed = 0;
+            for (int i = 0; i < m; i++) {
+                int label = KERNELS.nearest(batch.coord, i*d, clusters.coord, ct, k, d, mn).index;
+                int old = batch.label[i];
+                if (label == old) continue;
+                state.move(batch, i, old, label);
+                batch.label[i] = label;
+                if (old >= 0) moved[old] = true;
+                moved[label] = true;
+                changed++;
+            }
+            if (changed == 0) break;
+            for (int j = 0; j < k; j++) {
+                if (!moved[j] || state.num[j] == 0) continue;
+                for (int t = 0; t < d; t++) {
+                    clusters.coord[j*d + t] = state.sum[j*d + t]/state.num[j];
+                    ct[t*k + j] = clusters.coord[j*d + t];
+                }
+                if (!affected[j]) touched++;
+                affected[j] = true;
+            }
+        }
+        state.rows += m;
+        state.offset = offset;
+        SAVE_MODEL(opt.update, state);
+        BufferedWriter out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+        for (int i = 0; i < m; i++) {
+            out.write(ids[i]);
+            out.write(',');
+            out.write(Integer.toString(batch.label[i] + 1));
+            out.newLine();
+        }
+        out.flush();
+        System.err.printf("ingested %d new rows (%d in total), %d of %d clusters affected, %d passes, inertia %.6g, %d ms%n",
+                m, state.rows, touched, k, passes, state.inertia(), (System.nanoTime() - start)/1000000);
+    }
+    // BENCH; times the nearest-center kernel, scalar against SIMD, for growing dimensions
+    public static void BENCH (kernels simd) {
+        int n = 100000, k = 64, reps = 5;
+        kernels scalar = new scalar_kernels();
+        SplittableRandom rand = new SplittableRandom(SEED);
+        System.out.println("d\tscalar ms\tsimd ms\tspeedup");
+        for (int d = 2; d <= 64; d *= 2) {
+            dataset points = new dataset(n, d);
+            dataset clusters = new dataset(k, d);
+            double[] row = new double[d];
+            for (int i = 0; i < n + k; i++) {
+                for (int t = 0; t < d; t++) row[t] = rand.nextDouble();
+                if (i < n) points.add(row, 0);
+                else clusters.add(row, 0);
+            }
+            double[] ct = clusters.transpose(null);
+            int[] expected = new int[n];
+            double base = BENCH_NEAREST(scalar, points, clusters, ct, reps, expected);
+            String line = d + "\t" + String.format("%.1f", base);
+            if (simd != null) {
+                int[] got = new int[n];
+                double fast = BENCH_NEAREST(simd, points, clusters, ct, reps, got);
+                line += "\t" + String.format("%.1f\t%.2fx", fast, base/fast);
+                if (!Arrays.equals(expected, got)) line += "\tMISMATCH";
+            } else {
+                line += "\t-\t-";
+            }
+            System.out.println(line);
+        }
+    }
+    // best time in ms of reps nearest-center passes over all points, leaving the labels in out
+    private static double BENCH_NEAREST (kernels kern, dataset points, dataset clusters, double[] ct, int reps, int[] out) {
+        min m = new min(0, 0);
+        int d = points.d, k = clusters.n;
+        double best = Double.POSITIVE_INFINITY;
+        for (int r = 0; r < reps; r++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < points.n; i++) out[i] = kern.nearest(points.coord, i*d, clusters.coord, ct, k, d, m).index;
+            best = Math.min(best, (System.nanoTime() - start)/1e6);
+        }
+        return best;
+    }
+
+    // EVALUATE; one pass over the labelled points fills the inertia and the contingency table,
+    // truth holds dense ids 0..c-1
+    public static evaluation EVALUATE (dataset points, dataset clusters, int[] truth, int c) {
+        evaluation e = new evaluation(clusters.n, c);
+        for (int i = 0; i < points.n; i++) {
+            int label = points.label[i];
+            e.inertia += points.dist_sq(i, clusters, label);
+            e.table[label*c + truth[i]] += 1;
+        }
+        e.n = points.n;
+        e.totals();
+        return e;
+    }
     public static void main(String[] args) throws IOException {
         // k is in default set to 0 (should estimate), and set to non zero if there's given value
-        int k = 0;
-        if (args.length == 2) {
-            k = Integer.parseInt(args[1]);
-        } 
-        BufferedReader file = new BufferedReader(new FileReader(args[0]));
-        // n: number of items in the file
-        int n = 0;
+        options opt = options.parse(args);
+        kernels simd = opt.simd.equals("off") ? null : LOAD_KERNELS();
+        if (simd != null) KERNELS = simd;
+        System.err.println("kernels: " + (simd != null ? "simd" : "scalar"));
+        if (opt.bench) {
+            BENCH(simd);
+            return;
+        }
+        if (opt.score != null) {
+            SCORE(opt);
+            return;
+        }
+        if (opt.update != null) {
+            UPDATE_MODEL(opt);
+            return;
+        }
+        if (opt.minibatch > 0) {
+            MINI_BATCH_K_MEANS(opt);
+            return;
+        }
+        int k = opt.k;
+        FileInputStream in = new FileInputStream(opt.path);
+        BufferedReader file = new BufferedReader(new InputStreamReader(in));
         String temp;
-        // answer labels
+        // answer labels, mapped to dense ids in order of appearance
         List<String> ids = new ArrayList<>();
-        List<Integer> labels = new ArrayList<>();
-        List<point> points = new ArrayList<>();
+        Map<String, Integer> classes = new HashMap<>();
+        int[] truth = new int[1024];
+        dataset points = new dataset(1024, DIMENSION(opt.path));
+        double[] row = new double[points.d];
         // initialize dataset of n points
         while ((temp = file.readLine()) != null) {
-            n++;
             String[] line = temp.split(",");
             ids.add(line[0]);
-            labels.add(Integer.parseInt(line[3]));
-            points.add(new point(Double.parseDouble(line[1]), Double.parseDouble(line[2])));
+            if (points.n == truth.length) truth = Arrays.copyOf(truth, 2*truth.length);
+            truth[points.n] = classes.computeIfAbsent(line[line.length - 1].trim(), key -> classes.size());
+            for (int t = 0; t < row.length; t++) row[t] = Double.parseDouble(line[t + 1]);
+            points.add(row, 0);
         }
+        // bytes read, where a warm start picks up the appended rows
+        long offset = in.getChannel().position();
         file.close();
-        
+        // n: number of items in the file
+        int n = points.n;
+        System.err.println("memory per point: " + points.bytes_per_point() + " bytes (" + points.d + " coordinates, label)");
+
         // Random variable
-        Random rand = new Random(42);
+        Random rand = new Random(SEED);
         // clustering
-        point[] C = K_MEANS_PlusPlus(points, rand, k);
-        if (k == 0) k = C.length; // set k as estimated value 
+        long start = System.nanoTime();
+        dataset C;
+        if (opt.sweep_hi > 0) C = K_MEANS_SWEEP(points, rand, opt);
+        else if (opt.n_init > 1) C = K_MEANS_RESTARTS(points, k, opt);
+        else if (opt.coreset > 0) C = K_MEANS_CORESET(points, rand, k, opt);
+        else C = K_MEANS_PlusPlus(points, rand, k, opt);
+        System.err.println("clustering time: " + (System.nanoTime() - start)/1000000 + " ms (threads: " + opt.threads + ")");
+        k = C.n; // set k as estimated value 
+        if (opt.save_model != null) {
+            model state = new model(C);
+            for (int i = 0; i < n; i++) state.move(points, i, -1, points.label[i]);
+            state.rows = n;
+            state.offset = offset;
+            SAVE_MODEL(opt.save_model, state);
+        }
 
         // gather clusters
         cluster[] clusters = new cluster[k];
@@ -224,7 +1908,7 @@ public class A2_G13_t1 {
             clusters[i] = new cluster();
         }
         for (int i = 0; i < n; i++) {
-            clusters[points.get(i).label].add(ids.get(i)); 
+            clusters[points.label[i]].add(ids.get(i)); 
         }
         // print out clusters
         for (int i = 0; i < k; i++) {
@@ -232,40 +1916,10 @@ public class A2_G13_t1 {
             clusters[i].print();
             System.out.println();
         }
-        // // save results to csv
-        // BufferedWriter writer = new BufferedWriter(new FileWriter("res.csv"));
-        // writer.write("x,y,label\n");
-        // for (int i = 0; i < n; i++) {
-        //     point cur = points.get(i);
-        //     writer.write(cur.x + "," + cur.y + "," + cur.label + "\n");
-        // }
-        // writer.close();
-        // // calculate accuracy 0.9860236 0.9561234 0.6031236
-        // // number of TP, TN / FP, FN
-        // int[] acc = {0,0};
-        // for (int i = 0; i < n-1; i++) {
-        //     int exp_label = points.get(i).label;
-        //     int ans_label = labels.get(i);
-        //     for (int j = i+1; j < n; j++) {
-        //         int exp_label_c = points.get(j).label;
-        //         int ans_label_c = labels.get(j);
-        //         boolean exp_comp = exp_label == exp_label_c;
-        //         boolean ans_comp = ans_label == ans_label_c;
-        //         if (exp_comp == ans_comp) acc[0] += 1; // TP or TN
-        //         else acc[1] += 1; // FP or FN
-        //     }
-        // }
-        // float accuracy = (float) acc[0] / (acc[0]+acc[1]);
-        // System.out.println("accuracy: " + accuracy);
-        // // total distance
-        // double tot = 0;
-        // for (int i = 0; i < n; i++) {
-        //     point cur = points.get(i);
-        //     point cen = C[cur.label];
-        //     double x_diff = cur.x - cen.x;
-        //     double y_diff = cur.x - cen.y;
-        //     tot += x_diff*x_diff + y_diff* y_diff;
-        // }
-        // System.out.println("total distance: " + tot);
+        // evaluation against the answer labels
+        evaluation e = EVALUATE(points, C, truth, classes.size());
+        System.err.printf("inertia: %.6g%n", e.inertia);
+        System.err.printf("rand index: %.6f, adjusted rand index: %.6f, NMI: %.6f (%d clusters, %d classes)%n",
+                e.rand_index(), e.adjusted_rand_index(), e.normalized_mutual_information(), k, classes.size());
     }
 }
@@ -0,0 +1,79 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// SIMD distance kernels for A2_G13_t1, built on the incubating Vector API.
+// Compile and run with the module enabled, e.g.
+//   javac --add-modules jdk.incubator.vector A2_G13_t1.java A2_G13_t1_simd.java
+//   java --add-modules jdk.incubator.vector A2_G13_t1 <csv file> [k]
+// Without the module (or without this file) A2_G13_t1 falls back to its scalar kernels.
+public class A2_G13_t1_simd implements A2_G13_t1.kernels {
+    private static final VectorSpecies<Double> S = DoubleVector.SPECIES_PREFERRED;
+    private static final int L = S.length();
+
+    // lanes run over the dimensions; only worth it once a point fills a vector
+    public double dist_sq(double[] a, int ai, double[] b, int bi, int d) {
+        double ret = 0;
+        int t = 0;
+        if (d >= L) {
+            DoubleVector acc = DoubleVector.zero(S);
+            for (; t <= d - L; t += L) {
+                DoubleVector diff = DoubleVector.fromArray(S, b, bi + t).sub(DoubleVector.fromArray(S, a, ai + t));
+                acc = acc.add(diff.mul(diff));
+            }
+            ret = acc.reduceLanes(VectorOperators.ADD);
+        }
+        for (; t < d; t++) {
+            double diff = b[bi + t] - a[ai + t];
+            ret += diff*diff;
+        }
+        return ret;
+    }
+
+    // lanes run over L centers at a time, reading the column-major centers, so every lane sums
+    // its dimensions in the same order as the scalar kernel and the distances match it bit for bit
+    public A2_G13_t1.min nearest(double[] p, int pi, double[] c, double[] ct, int k, int d, A2_G13_t1.min out) {
+        double min = Double.POSITIVE_INFINITY;
+        int idx = -1;
+        int j = 0;
+        for (; j <= k - L; j += L) {
+            DoubleVector acc = DoubleVector.zero(S);
+            for (int t = 0; t < d; t++) {
+                DoubleVector diff = DoubleVector.fromArray(S, ct, t*k + j).sub(p[pi + t]);
+                acc = acc.add(diff.mul(diff));
+            }
+            double block = acc.reduceLanes(VectorOperators.MIN);
+            if (block < min) {
+                min = block;
+                idx = j + acc.compare(VectorOperators.EQ, block).firstTrue();
+            }
+        }
+        for (; j < k; j++) {
+            double dist = 0;
+            for (int t = 0; t < d; t++) {
+                double diff = c[j*d + t] - p[pi + t];
+                dist += diff*diff;
+            }
+            if (dist < min) {
+                min = dist;
+                idx = j;
+            }
+        }
+        if (idx < 0) {
+            // every distance was NaN; behave like the scalar kernel
+            idx = 0;
+            min = dist_sq(p, pi, c, 0, d);
+        }
+        out.value = min;
+        out.index = idx;
+        return out;
+    }
+
+    public void accumulate(double[] sum, int si, double[] p, int pi, int d) {
+        int t = 0;
+        for (; t <= d - L; t += L) {
+            DoubleVector.fromArray(S, sum, si + t).add(DoubleVector.fromArray(S, p, pi + t)).intoArray(sum, si + t);
+        }
+        for (; t < d; t++) sum[si + t] += p[pi + t];
+    }
+}
@@ -1,133 +1,1115 @@
 import java.io.*;
 import java.util.*;
 import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
-import static java.util.Collections.binarySearch;
-
 public class A2_G13_t2 {
     static int dim;
-    // key representing the 'actual' cluster, value representing the set of points.
-    static Map<String, Set<Point>> database = new HashMap<>();
+    // Points are the dense ids 0..n-1 in file order; the coordinates of point p are coord[p*dim .. p*dim+dim-1].
+    static int n;
+    static double[] coord = new double[0];
+    // truth[p]: the 'actual' cluster of p, as the dense id the classes map gives its name.
+    static int[] truth = new int[0];
+    static Map<String, Integer> classes = new HashMap<>();
+    // Label of a point which belongs to no cluster.
+    static final int NOISE = -1;
+    // Tree index over the current points, built on first use by spatialIndex().
+    static Tree index;
+    // Up to this dimension the eps-graph comes from a grid, above it from the tree index.
+    static final int GRID_MAX_DIM = 3;
+    // Up to this dimension the tree index is a KD-tree, above it a ball-tree.
+    static final int KD_MAX_DIM = 16;
+    // Cluster labeling engine, "dfs" (default) or "union-find", set with --labels.
+    static String labeling = "dfs";
+    // With --graph-free, clusters are expanded with range queries on demand instead of over a stored graph.
+    static boolean graphFree = false;
+    // With --incremental, the clusters are built by inserting the points one at a time into an IncrementalDBSCAN.
+    static boolean incremental = false;
+
+    // The Euclidean Distance between two points
+    static double dist(int p, int q) {
+        double ret=0.0;
+        for(int i=0;i<dim;++i) {
+            double diff = coord[p*dim+i] - coord[q*dim+i];
+            ret += diff*diff;
+        }
+        return Math.sqrt(ret);
+    }
+
+    // The squared Euclidean Distance between two points
+    static double distSq(int p, int q) {
+        double ret=0.0;
+        for(int i=0;i<dim;++i) {
+            double diff = coord[p*dim+i] - coord[q*dim+i];
+            ret += diff*diff;
+        }
+        return ret;
+    }
+
+    // Neighbor queries over the points.
+    interface SpatialIndex {
+        // Writes the points within eps of p, except p itself, into out and returns how many there are.
+        int range(int p, double eps, int[] out);
+        // The same for the points with ids above p only, so that every pair is tested once.
+        default int rangeAbove(int p, double eps, int[] out) {
+            return rangeAbove(p, eps, null, out);
+        }
+        // The same, also keeping the points below p that are in below (none when it is null).
+        int rangeAbove(int p, double eps, BitSet below, int[] out);
+        // The number of points within eps of p, except p itself, counting no further than limit.
+        int countRange(int p, double eps, int limit);
+    }
+
+    // Nearest neighbor queries over the points.
+    interface KnnIndex {
+        // The distance from p to its k-th nearest point. Here, we consider the points including p itself as possible
+        // neighbors (p is the first), so this is, 'technically', 'k-1'-dist.
+        double kDist(int p, int k);
+    }
+
+    // The tree index for the current points: a KD-tree in low dimensions, a ball-tree above KD_MAX_DIM.
+    static Tree spatialIndex() {
+        if(index == null) index = dim<=KD_MAX_DIM ? new KDTree() : new BallTree();
+        return index;
+    }
+
+    // Binary space partitioning tree over the point ids. The points of node v are perm[lo[v] .. hi[v]-1], its children
+    // are v+1 and right[v] (-1 for a leaf). Subclasses decide how a node is bounded and split; the queries only need a
+    // lower bound on the squared distance from a point to anything inside a node.
+    static abstract class Tree implements SpatialIndex, KnnIndex {
+        static final int LEAF_SIZE = 8;
+        final int[] perm;
+        int[] lo, hi, right;
+        int nodes;
+        // scratch sort key per point id, for the splits
+        final double[] key;
+
+        Tree() {
+            perm = new int[n];
+            for(int p=0;p<n;++p) perm[p] = p;
+            int capacity = Math.max(1, 4*n/LEAF_SIZE+2);
+            lo = new int[capacity];
+            hi = new int[capacity];
+            right = new int[capacity];
+            key = new double[n];
+        }
+
+        final void build() {
+            split(0, n);
+        }
+
+        private int split(int from, int to) {
+            int v = nodes++;
+            lo[v] = from;
+            hi[v] = to;
+            right[v] = -1;
+            bound(v);
+            // partition() fills key for perm[from .. to-1], false when the node cannot be split
+            if(to-from<=LEAF_SIZE || !partition(v)) return v;
+            int mid = (from+to)>>>1;
+            select(from, to, mid);
+            split(from, mid);
+            right[v] = split(mid, to);
+            return v;
+        }
+
+        // Partially sorts perm[from .. to-1] on key so that position kth holds its median.
+        private void select(int from, int to, int kth) {
+            int l = from, r = to-1;
+            while(l<r) {
+                double pivot = key[perm[(l+r)>>>1]];
+                int i = l, j = r;
+                while(i<=j) {
+                    while(key[perm[i]]<pivot) i++;
+                    while(key[perm[j]]>pivot) j--;
+                    if(i<=j) {
+                        int tmp = perm[i];
+                        perm[i++] = perm[j];
+                        perm[j--] = tmp;
+                    }
+                }
+                if(kth<=j) r = j;
+                else if(kth>=i) l = i;
+                else return;
+            }
+        }
+
+        abstract void bound(int v);
+        abstract boolean partition(int v);
+        abstract double lowerBoundSq(int v, int p);
+
+        public int range(int p, double eps, int[] out) {
+            return range(0, p, eps*eps, -1, null, out, 0);
+        }
+
+        public int rangeAbove(int p, double eps, BitSet below, int[] out) {
+            return range(0, p, eps*eps, p, below, out, 0);
+        }
+
+        public int countRange(int p, double eps, int limit) {
+            return count(0, p, eps*eps, limit, 0);
+        }
+
+        private int count(int v, int p, double epsSq, int limit, int cnt) {
+            if(cnt>=limit || lowerBoundSq(v, p)>epsSq) return cnt;
+            if(right[v]<0) {
+                for(int j=lo[v];j<hi[v] && cnt<limit;++j) {
+                    int q = perm[j];
+                    if(q!=p && distSq(p, q)<=epsSq) cnt++;
+                }
+                return cnt;
+            }
+            // the nearer child first, the count may be complete before the other one is needed
+            int a = v+1, b = right[v];
+            if(lowerBoundSq(b, p)<lowerBoundSq(a, p)) {
+                a = right[v];
+                b = v+1;
+            }
+            cnt = count(a, p, epsSq, limit, cnt);
+            return count(b, p, epsSq, limit, cnt);
+        }
+
+        // the points q > after (or in below), except p, within the squared distance epsSq
+        private int range(int v, int p, double epsSq, int after, BitSet below, int[] out, int cnt) {
+            if(lowerBoundSq(v, p)>epsSq) return cnt;
+            if(right[v]<0) {
+                for(int j=lo[v];j<hi[v];++j) {
+                    int q = perm[j];
+                    if(q!=p && (q>after || below!=null && below.get(q)) && distSq(p, q)<=epsSq) out[cnt++] = q;
+                }
+                return cnt;
+            }
+            cnt = range(v+1, p, epsSq, after, below, out, cnt);
+            return range(right[v], p, epsSq, after, below, out, cnt);
+        }
+
+        public double kDist(int p, int k) {
+            if(k>n) throw new IndexOutOfBoundsException("Index "+(k-1)+" out of bounds for length "+n);
+            double[] heap = new double[k]; // max-heap of the k smallest squared distances so far
+            nearest(0, p, heap, 0);
+            return Math.sqrt(heap[0]);
+        }
+
+        private int nearest(int v, int p, double[] heap, int size) {
+            if(size==heap.length && lowerBoundSq(v, p)>=heap[0]) return size;
+            if(right[v]<0) {
+                for(int j=lo[v];j<hi[v];++j) size = offer(heap, size, distSq(p, perm[j]));
+                return size;
+            }
+            // the nearer child first, so the heap tightens before the other one is tried
+            int a = v+1, b = right[v];
+            if(lowerBoundSq(b, p)<lowerBoundSq(a, p)) {
+                a = right[v];
+                b = v+1;
+            }
+            size = nearest(a, p, heap, size);
+            return nearest(b, p, heap, size);
+        }
 
-    private static class Point {
-        public ArrayList<Double> coord;
-        public Point(ArrayList<Double> coord) {
-            this.coord = coord;
+        // Pushes d into the bounded max-heap, dropping the largest value once it is full.
+        static int offer(double[] heap, int size, double d) {
+            int i;
+            if(size<heap.length) {
+                i = size++;
+                while(i>0 && heap[(i-1)>>1]<d) {
+                    heap[i] = heap[(i-1)>>1];
+                    i = (i-1)>>1;
+                }
+                heap[i] = d;
+                return size;
+            }
+            if(d>=heap[0]) return size;
+            i = 0;
+            while(true) {
+                int c = 2*i+1;
+                if(c>=size) break;
+                if(c+1<size && heap[c+1]>heap[c]) c++;
+                if(heap[c]<=d) break;
+                heap[i] = heap[c];
+                i = c;
+            }
+            heap[i] = d;
+            return size;
         }
-        // The Euclidean Distance between two points
-        final public double dist(final Point p) {
-            double ret=0.0;
+    }
+
+    // KD-tree: nodes are bounded by boxes and split at the median of their widest dimension.
+    static class KDTree extends Tree {
+        double[] boxMin, boxMax;
+
+        KDTree() {
+            boxMin = new double[lo.length*dim];
+            boxMax = new double[lo.length*dim];
+            build();
+        }
+
+        void bound(int v) {
+            Arrays.fill(boxMin, v*dim, v*dim+dim, Double.POSITIVE_INFINITY);
+            Arrays.fill(boxMax, v*dim, v*dim+dim, Double.NEGATIVE_INFINITY);
+            for(int j=lo[v];j<hi[v];++j) for(int i=0;i<dim;++i) {
+                double x = coord[perm[j]*dim+i];
+                boxMin[v*dim+i] = Math.min(boxMin[v*dim+i], x);
+                boxMax[v*dim+i] = Math.max(boxMax[v*dim+i], x);
+            }
+        }
+
+        boolean partition(int v) {
+            int wide = 0;
+            for(int i=1;i<dim;++i) if(boxMax[v*dim+i]-boxMin[v*dim+i]>boxMax[v*dim+wide]-boxMin[v*dim+wide]) wide = i;
+            if(boxMax[v*dim+wide]==boxMin[v*dim+wide]) return false;
+            for(int j=lo[v];j<hi[v];++j) key[perm[j]] = coord[perm[j]*dim+wide];
+            return true;
+        }
+
+        double lowerBoundSq(int v, int p) {
+            double ret = 0;
             for(int i=0;i<dim;++i) {
-                // get() has O(1) complexity for ArrayList (but O(n) for LinkedList)
-                // https://www.baeldung.com/java-collections-complexity#arraylist
-                ret += (coord.get(i) - p.coord.get(i))*(coord.get(i) - p.coord.get(i));
+                double x = coord[p*dim+i], gap = Math.max(boxMin[v*dim+i]-x, x-boxMax[v*dim+i]);
+                if(gap>0) ret += gap*gap;
             }
-            return Math.sqrt(ret);
+            return ret;
+        }
+    }
+
+    // Ball-tree: nodes are bounded by a ball around their centroid and split at the median of the projection on the
+    // direction between two far apart points, which keeps the balls tight where boxes in many dimensions are not.
+    static class BallTree extends Tree {
+        double[] center, radius;
+
+        BallTree() {
+            center = new double[lo.length*dim];
+            radius = new double[lo.length];
+            build();
         }
 
-        public static double dist(final Point p, final Point q) {
-            double ret=0.0;
+        private double toCenter(int v, int p) {
+            double ret = 0;
             for(int i=0;i<dim;++i) {
-                ret += (p.coord.get(i) - q.coord.get(i))*(p.coord.get(i) - q.coord.get(i));
+                double diff = coord[p*dim+i]-center[v*dim+i];
+                ret += diff*diff;
             }
-            return Math.sqrt(ret);
+            return ret;
         }
 
-        @Override
-        public String toString() {
-            return "Point{" +
-                    "coord=" + coord +
-                    '}';
+        void bound(int v) {
+            Arrays.fill(center, v*dim, v*dim+dim, 0);
+            for(int j=lo[v];j<hi[v];++j) for(int i=0;i<dim;++i) center[v*dim+i] += coord[perm[j]*dim+i];
+            for(int i=0;i<dim;++i) center[v*dim+i] /= hi[v]-lo[v];
+            double r = 0;
+            for(int j=lo[v];j<hi[v];++j) r = Math.max(r, toCenter(v, perm[j]));
+            radius[v] = Math.sqrt(r);
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            var o = (Point) obj;
-            if(coord.size() != o.coord.size()) return false;
-            for(int i=0,e=coord.size();i<e;++i) if(coord.get(i) != o.coord.get(i)) return false;
+        boolean partition(int v) {
+            if(radius[v]==0) return false;
+            // a: farthest from the centroid, b: farthest from a
+            int a = perm[lo[v]], b = a;
+            for(int j=lo[v];j<hi[v];++j) if(toCenter(v, perm[j])>toCenter(v, a)) a = perm[j];
+            for(int j=lo[v];j<hi[v];++j) if(distSq(a, perm[j])>distSq(a, b)) b = perm[j];
+            for(int j=lo[v];j<hi[v];++j) {
+                double dot = 0;
+                for(int i=0;i<dim;++i) dot += (coord[perm[j]*dim+i]-coord[a*dim+i])*(coord[b*dim+i]-coord[a*dim+i]);
+                key[perm[j]] = dot;
+            }
             return true;
         }
 
-        // necessary in practice to use the HashMap
-        @Override
-        public int hashCode() {
-            return Objects.hash(coord);
+        double lowerBoundSq(int v, int p) {
+            double gap = Math.sqrt(toCenter(v, p))-radius[v];
+            return gap>0 ? gap*gap : 0;
         }
     }
 
-    // The plain dbscan. This returns the ArrayList of cluster sets of points. Noise points are excluded from their union.
-    private static ArrayList<Set<Point>> dbscan(Set<Point> db, double eps, int mu) {
-        ArrayList<Set<Point>> ret = new ArrayList<>();
-        Map<Point, Set<Point>> graph = makeGraph(db, eps);
-        Set<Point> corePoints = getCores(graph, mu);
-        Set<Point> discovered = new HashSet<>(); // Add undiscovered later...
+    // Uniform grid over the points with cells of side eps, so the eps-neighborhood of a point lies in the 3^dim cells
+    // around its own. Cells are keyed by their exact integer coordinates in an open-addressing table, and the points
+    // of cell c are cellPoints[cellStart[c] .. cellStart[c+1]-1].
+    static class Grid implements SpatialIndex {
+        final double eps, side;
+        int cells;
+        long[] cellKey; // cellKey[c*dim .. c*dim+dim-1]: coordinates of cell c
+        int[] cellStart, cellPoints;
+        int[] cellOf; // the cell of each point
+        int[] table; // cell ids, -1 for an empty slot
+        int[] offsets; // the 3^dim neighbor offsets, dim digits in {0,-1,1} each, so the own cell comes first
 
-        for(Point s: corePoints) if(!discovered.contains(s)) {
-            discovered.add(s);
-            ret.add(findCluster(graph, s, corePoints, discovered));
+        Grid(double eps) {
+            this.eps = eps;
+            side = eps>0 ? eps : 1; // any side >= eps keeps the neighborhood within the adjacent cells
+            table = new int[Integer.highestOneBit(Math.max(n, 1))<<2];
+            Arrays.fill(table, -1);
+            cellKey = new long[Math.max(n, 1)*dim];
+            cellOf = new int[n];
+            long[] key = new long[dim];
+            for(int p=0;p<n;++p) {
+                for(int i=0;i<dim;++i) key[i] = (long)Math.floor(coord[p*dim+i]/side);
+                int c = find(key);
+                if(c<0) c = insert(key);
+                cellOf[p] = c;
+            }
+            cellStart = new int[cells+1];
+            for(int p=0;p<n;++p) cellStart[cellOf[p]+1]++;
+            for(int c=0;c<cells;++c) cellStart[c+1] += cellStart[c];
+            cellPoints = new int[n];
+            int[] fill = Arrays.copyOf(cellStart, cells);
+            for(int p=0;p<n;++p) cellPoints[fill[cellOf[p]]++] = p;
+            // enumerating the neighbor offsets only pays while there are fewer of them than occupied cells
+            if(dim<20 && Math.pow(3, dim)<=cells) {
+                offsets = new int[(int)Math.pow(3, dim)*dim];
+                for(int o=0,e=offsets.length/dim;o<e;++o) for(int i=0,r=o;i<dim;++i,r/=3) offsets[o*dim+i] = r%3==2 ? 1 : -(r%3);
+            }
         }
-        // Add noise as clusters
-//        ret.add();
 
-        return ret;
+        private int slot(long[] key, int from) {
+            long h = 0;
+            for(int i=0;i<dim;++i) h = (h+key[from+i])*0x9E3779B97F4A7C15L;
+            return (int)(h^(h>>>32)) & (table.length-1);
+        }
+
+        private boolean matches(int c, long[] key) {
+            for(int i=0;i<dim;++i) if(cellKey[c*dim+i]!=key[i]) return false;
+            return true;
+        }
+
+        // Id of the cell with the given coordinates, -1 if no point falls into it.
+        int find(long[] key) {
+            for(int h=slot(key, 0);;h=(h+1)&(table.length-1)) {
+                if(table[h]<0) return -1;
+                if(matches(table[h], key)) return table[h];
+            }
+        }
+
+        private int insert(long[] key) {
+            int h = slot(key, 0);
+            while(table[h]>=0) h = (h+1)&(table.length-1);
+            System.arraycopy(key, 0, cellKey, cells*dim, dim);
+            table[h] = cells;
+            return cells++;
+        }
+
+        // Range queries for the eps the grid was built with, or a smaller one.
+        public int range(int p, double eps, int[] out) {
+            return range(p, eps, -1, null, out);
+        }
+
+        public int rangeAbove(int p, double eps, BitSet below, int[] out) {
+            return range(p, eps, p, below, out);
+        }
+
+        // the points q > after (or in below), except p, within eps
+        private int range(int p, double eps, int after, BitSet below, int[] out) {
+            if(eps>side) throw new IllegalArgumentException("grid of side "+side+" cannot answer eps "+eps);
+            double epsSq = eps*eps;
+            int cnt = 0;
+            long[] key = new long[dim];
+            int home = cellOf[p]*dim;
+            if(offsets==null) {
+                // more neighbor offsets than cells: scan the cells instead, keeping the adjacent ones
+                for(int c=0;c<cells;++c) {
+                    boolean adjacent = true;
+                    for(int i=0;i<dim && adjacent;++i) adjacent = Math.abs(cellKey[c*dim+i]-cellKey[home+i])<=1;
+                    if(adjacent) cnt = scan(c, p, epsSq, after, below, out, cnt);
+                }
+                return cnt;
+            }
+            for(int o=0,e=offsets.length/dim;o<e;++o) {
+                for(int i=0;i<dim;++i) key[i] = cellKey[home+i]+offsets[o*dim+i];
+                int c = find(key);
+                if(c>=0) cnt = scan(c, p, epsSq, after, below, out, cnt);
+            }
+            return cnt;
+        }
+
+        public int countRange(int p, double eps, int limit) {
+            if(eps>side) throw new IllegalArgumentException("grid of side "+side+" cannot answer eps "+eps);
+            double epsSq = eps*eps;
+            int cnt = 0;
+            long[] key = new long[dim];
+            int home = cellOf[p]*dim;
+            for(int o=0,e=offsets==null ? cells : offsets.length/dim;o<e && cnt<limit;++o) {
+                int c;
+                if(offsets==null) {
+                    // scanning the cells, see range
+                    boolean adjacent = true;
+                    for(int i=0;i<dim && adjacent;++i) adjacent = Math.abs(cellKey[o*dim+i]-cellKey[home+i])<=1;
+                    c = adjacent ? o : -1;
+                } else {
+                    for(int i=0;i<dim;++i) key[i] = cellKey[home+i]+offsets[o*dim+i];
+                    c = find(key);
+                }
+                if(c<0) continue;
+                for(int j=cellStart[c];j<cellStart[c+1] && cnt<limit;++j) {
+                    int q = cellPoints[j];
+                    if(q!=p && distSq(p, q)<=epsSq) cnt++;
+                }
+            }
+            return cnt;
+        }
+
+        private int scan(int c, int p, double epsSq, int after, BitSet below, int[] out, int cnt) {
+            for(int j=cellStart[c];j<cellStart[c+1];++j) {
+                int q = cellPoints[j];
+                if(q!=p && (q>after || below!=null && below.get(q)) && distSq(p, q)<=epsSq) out[cnt++] = q;
+            }
+            return cnt;
+        }
     }
 
-    // Creating an edge-list graph of points of the dataset in which two points are incident iff their distance <= eps.
-    private static Map<Point, Set<Point>> makeGraph(final Collection<Point> db, double eps) {
-        Map<Point, Set<Point>> ret = new HashMap<>();
-        for(Point p: db) for(Point q: db) if(Point.dist(p, q)<=eps && !p.equals(q)) {
-            ret.computeIfAbsent(p, k->new HashSet<>()).add(q);
+    // The eps-graph in compressed sparse row form: the neighbors of p are neighbors[offsets[p] .. offsets[p+1]-1], at the
+    // distances in the same positions of distances when those were asked for.
+    static class Graph {
+        final int[] offsets, neighbors;
+        final float[] distances;
+
+        Graph(int[] offsets, int[] neighbors, float[] distances) {
+            this.offsets = offsets;
+            this.neighbors = neighbors;
+            this.distances = distances;
         }
+
+        int degree(int p) {
+            return offsets[p+1]-offsets[p];
+        }
+
+        // Number of undirected edges, each stored once per endpoint.
+        long edges() {
+            return neighbors.length/2;
+        }
+
+        long bytes() {
+            return 4L*offsets.length + 4L*neighbors.length + (distances==null ? 0 : 4L*distances.length);
+        }
+    }
+
+    // The plain dbscan, in two phases: core points are found by counting alone, then the graph holds the edges of the
+    // core points only. This returns the cluster id of every point, NOISE for the ones outside every cluster.
+    private static int[] dbscan(double eps, int mu) {
+        if(incremental) return incrementalDbscan(eps, mu);
+        SpatialIndex idx = rangeIndex(eps);
+        BitSet corePoints = getCores(idx, eps, mu);
+        if(graphFree) return expandClusters(idx, eps, corePoints);
+        return dbscan(makeGraph(idx, eps, corePoints, false), corePoints);
+    }
+
+    // The same labels built by inserting the points one by one into an IncrementalDBSCAN; border points reachable from
+    // two clusters may be given the other one. The insert latency goes to stderr.
+    private static int[] incrementalDbscan(double eps, int mu) {
+        long start = System.nanoTime();
+        IncrementalDBSCAN inc = new IncrementalDBSCAN(dim, eps, mu);
+        for(int p=0;p<n;++p) inc.insert(Arrays.copyOfRange(coord, p*dim, p*dim+dim));
+        System.err.printf("Incremental : %d inserts, %.1f us each%n", n, (System.nanoTime()-start)/1e3/Math.max(n, 1));
+        return inc.labels();
+    }
+
+    // Graph-free labeling: the same depth-first expansion as findCluster, with the neighbors of each core point asked
+    // from the index when it is popped. Besides the index only the labels, the core flags, the frontier and one
+    // neighborhood are held, all O(n) whatever eps is.
+    private static int[] expandClusters(SpatialIndex idx, double eps, BitSet corePoints) {
+        int[] labels = new int[n];
+        Arrays.fill(labels, NOISE);
+        int[] stack = new int[n], buf = new int[n];
+        int clusters = 0;
+        for(int s=corePoints.nextSetBit(0);s>=0;s=corePoints.nextSetBit(s+1)) if(labels[s]==NOISE) {
+            int id = clusters++, top = 0;
+            labels[s] = id;
+            stack[top++] = s;
+            while(top>0) {
+                int node = stack[--top];
+                // only core points are pushed, a discovered border point is labeled and left
+                for(int j=0,e=idx.range(node, eps, buf);j<e;++j) {
+                    int nb = buf[j];
+                    if(labels[nb]!=NOISE) continue;
+                    labels[nb] = id;
+                    if(corePoints.get(nb)) stack[top++] = nb;
+                }
+            }
+        }
+        return labels;
+    }
+
+    // Labels the clusters of the core points over a graph holding at least their edges.
+    private static int[] dbscan(Graph graph, BitSet corePoints) {
+        if(labeling.equals("union-find")) return unionFindLabels(graph, corePoints);
+        if(!labeling.equals("dfs")) throw new IllegalArgumentException("unknown labeling: "+labeling);
+        int[] labels = new int[n];
+        Arrays.fill(labels, NOISE);
+        BitSet discovered = new BitSet(n);
+        int[] stack = new int[n];
+        int clusters = 0;
+
+        for(int s=corePoints.nextSetBit(0);s>=0;s=corePoints.nextSetBit(s+1)) if(!discovered.get(s)) {
+            discovered.set(s);
+            findCluster(graph, s, corePoints, discovered, stack, labels, clusters++);
+        }
+
+        return labels;
+    }
+
+    // Lock-free disjoint sets over the point ids. Each entry packs the rank (high half) and the parent (low half) of a
+    // point, so both change together in one CAS; find halves the path as it goes and union links the lower ranked root
+    // under the other, ties broken towards the smaller id.
+    static class DisjointSets {
+        final AtomicLongArray entries;
+
+        DisjointSets(int size) {
+            entries = new AtomicLongArray(size);
+            for(int p=0;p<size;++p) entries.set(p, pack(0, p));
+        }
+
+        static long pack(int rank, int parent) {
+            return (long)rank<<32 | parent;
+        }
+
+        static int parent(long entry) {
+            return (int)entry;
+        }
+
+        static int rank(long entry) {
+            return (int)(entry>>>32);
+        }
+
+        int find(int x) {
+            while(true) {
+                long e = entries.get(x);
+                int p = parent(e);
+                if(p==x) return x;
+                int gp = parent(entries.get(p));
+                // path halving; losing the race only means someone else shortened the path already
+                if(gp!=p) entries.compareAndSet(x, e, pack(rank(e), gp));
+                x = gp;
+            }
+        }
+
+        void union(int a, int b) {
+            while(true) {
+                a = find(a);
+                b = find(b);
+                if(a==b) return;
+                long ea = entries.get(a), eb = entries.get(b);
+                // a root may have been linked or re-ranked since find, the CASes then fail and we retry
+                if(parent(ea)!=a || parent(eb)!=b) continue;
+                int ra = rank(ea), rb = rank(eb);
+                if(ra<rb || (ra==rb && a>b)) {
+                    int t = a; a = b; b = t;
+                    long te = ea; ea = eb; eb = te;
+                }
+                // b goes under a
+                if(!entries.compareAndSet(b, eb, pack(rank(eb), a))) continue;
+                if(rank(ea)==rank(eb)) entries.compareAndSet(a, ea, pack(rank(ea)+1, a));
+                return;
+            }
+        }
+    }
+
+    // Labeling by disjoint sets: core points are united with their core neighbors in parallel, clusters are numbered in
+    // the order of their smallest core point, and every border point then joins the lowest numbered cluster among its
+    // core neighbors. That is the cluster the DFS would have reached it from first, so the labels are the same.
+    private static int[] unionFindLabels(Graph graph, BitSet corePoints) {
+        DisjointSets sets = new DisjointSets(n);
+        IntStream.range(0, n).parallel().filter(corePoints::get).forEach(p -> {
+            for(int j=graph.offsets[p];j<graph.offsets[p+1];++j) {
+                int q = graph.neighbors[j];
+                if(q>p && corePoints.get(q)) sets.union(p, q);
+            }
+        });
+        int[] labels = new int[n];
+        Arrays.fill(labels, NOISE);
+        int[] clusterOf = new int[n];
+        Arrays.fill(clusterOf, NOISE);
+        int clusters = 0;
+        for(int p=corePoints.nextSetBit(0);p>=0;p=corePoints.nextSetBit(p+1)) {
+            int root = sets.find(p);
+            if(clusterOf[root]==NOISE) clusterOf[root] = clusters++;
+            labels[p] = clusterOf[root];
+        }
+        IntStream.range(0, n).parallel().filter(p -> !corePoints.get(p)).forEach(p -> {
+            int label = NOISE;
+            for(int j=graph.offsets[p];j<graph.offsets[p+1];++j) {
+                int q = graph.neighbors[j];
+                if(corePoints.get(q) && (label==NOISE || labels[q]<label)) label = labels[q];
+            }
+            labels[p] = label;
+        });
+        return labels;
+    }
+
+    // DBSCAN kept up to date under insertions and deletions. Every point has an id (never reused), a neighbor count and a
+    // core flag; points are labeled with cluster handles, where merged clusters are handles joined in a disjoint-set, so
+    // a merge costs nothing beyond the new point's neighborhood. A deletion that takes away core points may split their
+    // cluster: the core points around them are explored breadth-first from all sides at once, and the exploration stops
+    // as soon as all sides meet or all but one are exhausted, so only the parts that broke off are visited and relabeled.
+    // Neighborhoods come from a dynamic grid of side eps. Above KEY_MAX_DIM dimensions the cells are keyed on the first
+    // KEY_MAX_DIM coordinates only, which still holds every eps-neighbor in the 3^KEY_MAX_DIM adjacent cells; an update
+    // then costs as much as the density of the points projected on those coordinates, which is more than the density
+    // in full space when the clusters only separate along the others.
+    static class IncrementalDBSCAN {
+        static final int KEY_MAX_DIM = 4;
+        final int dim, need;
+        final double eps;
+        int size;
+        double[] coord;
+        int[] count, label;
+        int[] cellOf; // the cell of each point
+        BitSet alive = new BitSet(), core = new BitSet();
+        final int keyDims; // cells are keyed on the first keyDims coordinates
+        final int[] offsets; // as in Grid, over the keyDims coordinates
+        // cells as in Grid, but growing: cellKey[c*keyDims ..] are the coordinates of cell c, cellPoints[c][0] is the
+        // number of its points and cellPoints[c][1 ..] are their ids; a cell left empty keeps its slot
+        int cells;
+        long[] cellKey;
+        int[][] cellPoints;
+        int[] table; // cell ids, -1 for an empty slot
+        final long[] probe; // the key being looked up
+        int[] handles = new int[16]; // parent of each cluster handle
+        int handleCount;
+        // scratch of the queries and the split check, sized with the points; visit[p] is the exploration that reached
+        // core point p, -1 while none has
+        int[] scratch = new int[16], visit = new int[16];
+        BitSet marked = new BitSet();
+
+        IncrementalDBSCAN(int dim, double eps, int mu) {
+            this.dim = dim;
+            this.eps = eps;
+            need = Math.max(1, mu-1); // the same core condition as getCores
+            coord = new double[16*dim];
+            count = new int[16];
+            label = new int[16];
+            cellOf = new int[16];
+            Arrays.fill(visit, -1);
+            keyDims = Math.min(dim, KEY_MAX_DIM);
+            offsets = new int[(int)Math.pow(3, keyDims)*keyDims];
+            for(int o=0,e=offsets.length/keyDims;o<e;++o) for(int i=0,r=o;i<keyDims;++i,r/=3) offsets[o*keyDims+i] = r%3==2 ? 1 : -(r%3);
+            probe = new long[keyDims];
+            cellKey = new long[16*keyDims];
+            cellPoints = new int[16][];
+            table = new int[64];
+            Arrays.fill(table, -1);
+        }
+
+        private double distSq(int p, int q) {
+            double ret = 0;
+            for(int i=0;i<dim;++i) {
+                double diff = coord[p*dim+i]-coord[q*dim+i];
+                ret += diff*diff;
+            }
+            return ret;
+        }
+
+        private int slot(long[] key, int from) {
+            long h = 0;
+            for(int i=0;i<keyDims;++i) h = (h+key[from+i])*0x9E3779B97F4A7C15L;
+            return (int)(h^(h>>>32)) & (table.length-1);
+        }
+
+        // Id of the cell with the coordinates in probe, -1 if there is none.
+        private int findCell() {
+            for(int h=slot(probe, 0);;h=(h+1)&(table.length-1)) {
+                int c = table[h];
+                if(c<0) return -1;
+                boolean same = true;
+                for(int i=0;i<keyDims && same;++i) same = cellKey[c*keyDims+i]==probe[i];
+                if(same) return c;
+            }
+        }
+
+        // Id of the cell with the coordinates in probe, created when there is none.
+        private int cellFor() {
+            int c = findCell();
+            if(c>=0) return c;
+            if(cells==cellPoints.length) {
+                cellPoints = Arrays.copyOf(cellPoints, cells<<1);
+                cellKey = Arrays.copyOf(cellKey, (cells<<1)*keyDims);
+            }
+            c = cells++;
+            System.arraycopy(probe, 0, cellKey, c*keyDims, keyDims);
+            cellPoints[c] = new int[4];
+            if(cells*2>table.length) {
+                // half full: rehash every cell into a table twice the size
+                table = new int[table.length<<1];
+                Arrays.fill(table, -1);
+                for(int d=0;d<cells;++d) {
+                    int h = slot(cellKey, d*keyDims);
+                    while(table[h]>=0) h = (h+1)&(table.length-1);
+                    table[h] = d;
+                }
+            }
+            else {
+                int h = slot(probe, 0);
+                while(table[h]>=0) h = (h+1)&(table.length-1);
+                table[h] = c;
+            }
+            return c;
+        }
+
+        // The live points within eps of p, except p itself.
+        int[] neighbors(int p) {
+            int home = cellOf[p]*keyDims;
+            double epsSq = eps*eps;
+            int cnt = 0;
+            for(int o=0,e=offsets.length/keyDims;o<e;++o) {
+                for(int i=0;i<keyDims;++i) probe[i] = cellKey[home+i]+offsets[o*keyDims+i];
+                int c = findCell();
+                if(c<0) continue;
+                int[] cell = cellPoints[c];
+                for(int j=1;j<=cell[0];++j) if(cell[j]!=p && distSq(p, cell[j])<=epsSq) {
+                    if(cnt==scratch.length) scratch = Arrays.copyOf(scratch, cnt<<1);
+                    scratch[cnt++] = cell[j];
+                }
+            }
+            return Arrays.copyOf(scratch, cnt);
+        }
+
+        private int newHandle() {
+            if(handleCount==handles.length) handles = Arrays.copyOf(handles, handleCount<<1);
+            handles[handleCount] = handleCount;
+            return handleCount++;
+        }
+
+        private int find(int h) {
+            while(handles[h]!=h) {
+                handles[h] = handles[handles[h]];
+                h = handles[h];
+            }
+            return h;
+        }
+
+        private int union(int a, int b) {
+            a = find(a);
+            b = find(b);
+            if(a==b) return a;
+            if(a>b) {
+                int t = a; a = b; b = t;
+            }
+            handles[b] = a;
+            return a;
+        }
+
+        // The cluster of point p as a handle root, NOISE when it is in none.
+        int cluster(int p) {
+            return label[p]==NOISE ? NOISE : find(label[p]);
+        }
+
+        // Adds a point and returns its id.
+        int insert(double[] x) {
+            int p = size++;
+            if(p==count.length) {
+                count = Arrays.copyOf(count, p<<1);
+                label = Arrays.copyOf(label, p<<1);
+                cellOf = Arrays.copyOf(cellOf, p<<1);
+                coord = Arrays.copyOf(coord, (p<<1)*dim);
+                visit = Arrays.copyOf(visit, p<<1);
+                Arrays.fill(visit, p, p<<1, -1);
+            }
+            System.arraycopy(x, 0, coord, p*dim, dim);
+            label[p] = NOISE;
+            double side = eps>0 ? eps : 1;
+            for(int i=0;i<keyDims;++i) probe[i] = (long)Math.floor(x[i]/side);
+            int c = cellFor();
+            cellOf[p] = c;
+            int[] nb = neighbors(p); // p is not in its cell yet
+            int[] cell = cellPoints[c];
+            if(cell[0]+1==cell.length) cell = cellPoints[c] = Arrays.copyOf(cell, cell.length<<1);
+            cell[++cell[0]] = p;
+            alive.set(p);
+            count[p] = nb.length;
+            int[] newCores = new int[nb.length+1];
+            int m = 0;
+            if(count[p]>=need) {
+                core.set(p);
+                newCores[m++] = p;
+            }
+            for(int q: nb) if(++count[q]>=need && !core.get(q)) {
+                core.set(q);
+                newCores[m++] = q;
+            }
+            for(int i=0;i<m;++i) attach(newCores[i]);
+            if(!core.get(p)) for(int q: nb) if(core.get(q)) {
+                label[p] = find(label[q]);
+                break;
+            }
+            return p;
+        }
+
+        // A point that just became core joins, and so merges, the clusters of its core neighbors, or starts one; its
+        // unclustered neighbors become its border points.
+        private void attach(int c) {
+            int[] nb = neighbors(c);
+            int h = label[c]==NOISE ? NOISE : find(label[c]);
+            for(int q: nb) if(core.get(q) && label[q]!=NOISE) h = h==NOISE ? find(label[q]) : union(h, label[q]);
+            if(h==NOISE) h = newHandle();
+            label[c] = h;
+            for(int q: nb) if(!core.get(q) && label[q]==NOISE) label[q] = h;
+        }
+
+        // Removes point p.
+        void delete(int p) {
+            if(!alive.get(p)) throw new IllegalArgumentException("no point "+p);
+            int[] cell = cellPoints[cellOf[p]];
+            for(int j=1;j<=cell[0];++j) if(cell[j]==p) {
+                cell[j] = cell[cell[0]--];
+                break;
+            }
+            alive.clear(p);
+            int[] nb = neighbors(p);
+            boolean wasCore = core.get(p);
+            core.clear(p);
+            label[p] = NOISE;
+            int[] lost = new int[nb.length];
+            int nl = 0;
+            for(int q: nb) if(--count[q]<need && core.get(q)) {
+                core.clear(q);
+                lost[nl++] = q;
+            }
+            if(!wasCore && nl==0) return;
+            // the core points that may have been connected through p or the lost cores, keyed by cluster in the high
+            // half so that sorting groups them, and the non-core points whose cluster may have gone
+            long[] seeds = new long[16];
+            int[] recheck = new int[16];
+            int ns = 0, nr = 0;
+            for(int l=-1;l<nl;++l) {
+                // the lost cores are neighbors of p, so they are rechecked from nb
+                for(int q: l<0 ? nb : neighbors(lost[l])) {
+                    if(marked.get(q)) continue;
+                    marked.set(q);
+                    if(core.get(q)) {
+                        if(ns==seeds.length) seeds = Arrays.copyOf(seeds, ns<<1);
+                        seeds[ns++] = (long)find(label[q])<<32 | q;
+                    }
+                    else {
+                        if(nr==recheck.length) recheck = Arrays.copyOf(recheck, nr<<1);
+                        recheck[nr++] = q;
+                    }
+                }
+            }
+            marked.clear();
+            Arrays.sort(seeds, 0, ns);
+            for(int from=0,to;from<ns;from=to) {
+                for(to=from+1;to<ns && seeds[to]>>>32==seeds[from]>>>32;) ++to;
+                if(to-from>1) split((int)(seeds[from]>>>32), seeds, from, to);
+            }
+            for(int i=0;i<nr;++i) {
+                int b = recheck[i], keep = NOISE, any = NOISE, cur = cluster(b);
+                for(int q: neighbors(b)) if(core.get(q)) {
+                    int r = find(label[q]);
+                    if(r==cur) keep = r;
+                    if(any==NOISE) any = r;
+                }
+                label[b] = keep!=NOISE ? keep : any;
+            }
+        }
+
+        // Explores the core points of cluster root from the seeds (the low halves of seeds[from .. to-1]) in lock step.
+        // Seeds whose explorations meet are joined; an exploration that runs out of points while others remain is a
+        // part that broke off and gets a new handle. The last part standing keeps the root and is never explored to the
+        // end.
+        private void split(int root, long[] seeds, int from, int to) {
+            int m = to-from;
+            int[] group = new int[m], head = new int[m], tail = new int[m];
+            int[][] queue = new int[m][];
+            int[] seen = new int[m]; // the core points reached, in order
+            int nv = 0;
+            for(int g=0;g<m;++g) {
+                int s = (int)seeds[from+g];
+                group[g] = g;
+                queue[g] = new int[]{s, 0, 0, 0};
+                tail[g] = 1;
+                visit[s] = g;
+                seen[nv++] = s;
+            }
+            int open = m; // groups neither merged into another nor finished
+            boolean[] done = new boolean[m];
+            while(open>1) {
+                for(int g=0;g<m && open>1;++g) {
+                    if(group[g]!=g || done[g]) continue;
+                    if(head[g]==tail[g]) {
+                        // everything reachable from g has been seen: a separate cluster
+                        done[g] = true;
+                        open--;
+                        int h = newHandle();
+                        for(int i=0;i<nv;++i) if(root(group, visit[seen[i]])==g) {
+                            int c = seen[i];
+                            label[c] = h;
+                            for(int q: neighbors(c)) if(!core.get(q) && cluster(q)==root) label[q] = h;
+                        }
+                        continue;
+                    }
+                    int x = queue[g][head[g]++];
+                    for(int q: neighbors(x)) if(core.get(q)) {
+                        if(visit[q]<0) {
+                            visit[q] = g;
+                            if(nv==seen.length) seen = Arrays.copyOf(seen, nv<<1);
+                            seen[nv++] = q;
+                            if(tail[g]==queue[g].length) queue[g] = Arrays.copyOf(queue[g], tail[g]<<1);
+                            queue[g][tail[g]++] = q;
+                            continue;
+                        }
+                        int o = root(group, visit[q]);
+                        if(o==g) continue;
+                        // the two explorations meet, g takes over o
+                        group[o] = g;
+                        int len = tail[o]-head[o];
+                        if(tail[g]+len>queue[g].length) queue[g] = Arrays.copyOf(queue[g], Math.max(tail[g]+len, tail[g]<<1));
+                        System.arraycopy(queue[o], head[o], queue[g], tail[g], len);
+                        tail[g] += len;
+                        head[o] = tail[o];
+                        open--;
+                        if(open==1) break;
+                    }
+                }
+            }
+            for(int i=0;i<nv;++i) visit[seen[i]] = -1;
+        }
+
+        private static int root(int[] group, int g) {
+            while(group[g]!=g) g = group[g];
+            return g;
+        }
+
+        // The labels of the points 0..size-1, clusters numbered in the order of their smallest core point; deleted
+        // points are NOISE.
+        int[] labels() {
+            int[] ret = new int[size], dense = new int[handleCount];
+            Arrays.fill(ret, NOISE);
+            Arrays.fill(dense, NOISE);
+            int clusters = 0;
+            for(int p=core.nextSetBit(0);p>=0;p=core.nextSetBit(p+1)) {
+                int r = find(label[p]);
+                if(dense[r]==NOISE) dense[r] = clusters++;
+                ret[p] = dense[r];
+            }
+            for(int p=alive.nextSetBit(0);p>=0;p=alive.nextSetBit(p+1)) if(!core.get(p) && label[p]!=NOISE) ret[p] = dense[find(label[p])];
+            return ret;
+        }
+    }
+
+    // Number of clusters in a labelling.
+    private static int clusterCount(int[] labels) {
+        int ret=0;
+        for(int label: labels) ret = Math.max(ret, label+1);
         return ret;
     }
 
-    // Finding all core points based on the edge-list graph.
-    private static Set<Point> getCores(final Map<Point, Set<Point>> graph, int mu) {
-        Set<Point> ret = new HashSet<>();
-        for(Point s: graph.keySet()) if(graph.get(s).size()>=mu-1) ret.add(s);
+    // The neighbor index for eps: a grid in few dimensions, the tree index otherwise. A grid is built for its eps, so a
+    // run builds it once and hands it to both phases.
+    private static SpatialIndex rangeIndex(double eps) {
+        return dim<=GRID_MAX_DIM ? new Grid(eps) : spatialIndex();
+    }
+
+    // Creating the graph of points of the dataset in which two points are incident iff their distance <= eps.
+    // The neighbors come from range queries on a grid (few dimensions) or the tree index, restricted to larger ids so
+    // every pair is tested once. Points are sharded over the cores in contiguous id ranges, each shard collecting its
+    // half-edges in its own buffers; a merge in id order then writes both directions of every edge into the CSR arrays,
+    // which leaves every row sorted without locks or a final sort.
+    // Given the core points, only edges with a core end are kept, and only the core points are queried: each looks for
+    // its larger neighbors and its smaller non-core ones. The rows of core points are then not sorted, which the
+    // labeling does not depend on.
+    private static Graph makeGraph(SpatialIndex idx, double eps, BitSet cores, boolean withDistances) {
+        int shards = Math.max(1, Math.min(n, 4*Runtime.getRuntime().availableProcessors()));
+        int size = (n+shards-1)/Math.max(shards, 1);
+        int[] above = new int[n]; // neighbors of p with larger ids
+        BitSet nonCores = null;
+        if(cores!=null) {
+            nonCores = (BitSet)cores.clone();
+            nonCores.flip(0, n);
+        }
+        BitSet below = nonCores;
+        int[][] shardNeighbors = new int[shards][];
+        float[][] shardDistances = new float[shards][];
+        ThreadLocal<int[]> scratch = ThreadLocal.withInitial(() -> new int[n]);
+        IntStream.range(0, shards).parallel().forEach(c -> {
+            int[] buf = scratch.get();
+            int[] out = new int[16];
+            float[] dists = withDistances ? new float[16] : null;
+            int cnt = 0;
+            for(int p=c*size, e=Math.min(n, p+size);p<e;++p) {
+                int m = cores==null || cores.get(p) ? idx.rangeAbove(p, eps, below, buf) : 0;
+                Arrays.sort(buf, 0, m);
+                if(cnt+m>out.length) {
+                    out = Arrays.copyOf(out, Math.max(cnt+m, out.length<<1));
+                    if(withDistances) dists = Arrays.copyOf(dists, out.length);
+                }
+                for(int j=0;j<m;++j) {
+                    out[cnt] = buf[j];
+                    if(withDistances) dists[cnt] = (float)Math.sqrt(distSq(p, buf[j]));
+                    cnt++;
+                }
+                above[p] = m;
+            }
+            shardNeighbors[c] = Arrays.copyOf(out, cnt);
+            if(withDistances) shardDistances[c] = Arrays.copyOf(dists, cnt);
+        });
+        // degrees, then the rows; a row receives its smaller neighbors before its own larger ones
+        int[] offsets = new int[n+1];
+        for(int p=0;p<n;++p) offsets[p+1] += above[p];
+        for(int[] out: shardNeighbors) for(int q: out) offsets[q+1]++;
+        for(int p=0;p<n;++p) offsets[p+1] += offsets[p];
+        int[] neighbors = new int[offsets[n]];
+        float[] distances = withDistances ? new float[offsets[n]] : null;
+        int[] cursor = Arrays.copyOf(offsets, n);
+        for(int c=0;c<shards;++c) {
+            int j = 0;
+            for(int p=c*size, e=Math.min(n, p+size);p<e;++p) for(int t=0;t<above[p];++t,++j) {
+                int q = shardNeighbors[c][j];
+                if(withDistances) {
+                    distances[cursor[p]] = shardDistances[c][j];
+                    distances[cursor[q]] = shardDistances[c][j];
+                }
+                neighbors[cursor[p]++] = q;
+                neighbors[cursor[q]++] = p;
+            }
+        }
+        return new Graph(offsets, neighbors, distances);
+    }
+
+    // Finding all core points by counting their neighbors, each count stopping once it is enough. Points without any
+    // neighbor are never cores.
+    private static BitSet getCores(SpatialIndex idx, double eps, int mu) {
+        int need = Math.max(1, mu-1);
+        boolean[] core = new boolean[n];
+        IntStream.range(0, n).parallel().forEach(p -> core[p] = idx.countRange(p, eps, need)>=need);
+        BitSet ret = new BitSet(n);
+        for(int s=0;s<n;++s) if(core[s]) ret.set(s);
         return ret;
     }
 
-    // Finding cluster of a core point.
-    private static Set<Point> findCluster(final Map<Point, Set<Point>> graph, Point s, Set<Point> corePoints, Set<Point> discovered) {
-        LinkedList<Point> stack = new LinkedList<>();
-        stack.push(s);
-        Set<Point> cluster = new HashSet<>();
-        while (!stack.isEmpty()) {
-            Point node = stack.pop();
-            cluster.add(node);
-            if(corePoints.contains(node)) {
-                for (Point nb : graph.get(node)) if(!discovered.contains(nb)) {
-                    discovered.add(nb);
-                    stack.push(nb);
+    // Finding cluster of a core point, labelling its points with id.
+    private static void findCluster(final Graph graph, int s, BitSet corePoints, BitSet discovered, int[] stack, int[] labels, int id) {
+        int top = 0;
+        stack[top++] = s;
+        while (top>0) {
+            int node = stack[--top];
+            labels[node] = id;
+            if(corePoints.get(node)) {
+                for (int j = graph.offsets[node]; j < graph.offsets[node+1]; j++) {
+                    int nb = graph.neighbors[j];
+                    if(discovered.get(nb)) continue;
+                    discovered.set(nb);
+                    stack[top++] = nb;
                 }
             }
         }
-        return cluster;
     }
 
     // Simple manual printing function
     private static void manual(String msg) {
-        System.out.println("Usage: java <bytecode file> <csv file> [mu] [epsilon]");
+        System.out.println("Usage: java <bytecode file> <csv file> [mu] [epsilon] [--labels dfs|union-find] [--graph-free] [--incremental]");
         System.out.println("Message: $"+msg);
     }
 
     // returns the optimal epsilon estimated, given data points and mu value.
-    private static List<Double> epsEstimates(final Collection<Point> db, int mu) {
-        int n = db.size(), opt=0;
-        ArrayList<Double> k_dist = getKdists(db, mu); // This is equivalent to (mu-1)-dist list.
+    private static List<Double> epsEstimates(int mu) {
+        double[] k_dist = getKdists(mu); // This is equivalent to (mu-1)-dist list.
         List<Integer> opts = List.of(cand1(k_dist), cand2(k_dist), cand3(k_dist), cand4(k_dist));
-        return opts.stream().map(k_dist::get).collect(Collectors.toList());
+        return opts.stream().map(i -> k_dist[i]).collect(Collectors.toList());
     }
 
     // Candidate 1: Find the index i of point pi whose 'instantaneous rate of change', pi+1.y-pi.y is most similar to the average rate of change.
-    private static int cand1(ArrayList<Double> k_dist) {
-        int ret=0, n = k_dist.size();
-        double avgDiff = (k_dist.get(0)-k_dist.get(n-1))/(n-1), dist = Double.MAX_VALUE, diff;
+    private static int cand1(double[] k_dist) {
+        int ret=0, n = k_dist.length;
+        double avgDiff = (k_dist[0]-k_dist[n-1])/(n-1), dist = Double.MAX_VALUE, diff;
         for(int i=0,e=n-1;i<e;++i) {
-            diff = Math.abs(k_dist.get(i)-k_dist.get(i+1) - avgDiff);
+            diff = Math.abs(k_dist[i]-k_dist[i+1] - avgDiff);
             if(diff<dist) {
                 dist = diff;
                 ret = i;
@@ -136,11 +1118,11 @@ public class A2_G13_t2 {
         return ret;
     }
     // Candidate 2: Find the index i of point pi whose ratio slope(p0pi)/slope(pipn-1) is maximized!
-    private static int cand2(ArrayList<Double> k_dist) {
-        int ret=0, n = k_dist.size();
+    private static int cand2(double[] k_dist) {
+        int ret=0, n = k_dist.length;
         double maxRatio = 0.0, ratio;
         for(int i=1,e=n-1;i<e;++i) {
-            ratio = (k_dist.get(0)-k_dist.get(i))*(n-1-i)/((k_dist.get(i)-k_dist.get(n-1))*i);
+            ratio = (k_dist[0]-k_dist[i])*(n-1-i)/((k_dist[i]-k_dist[n-1])*i);
             if(maxRatio<ratio) {
                 maxRatio = ratio;
                 ret = i;
@@ -149,13 +1131,13 @@ public class A2_G13_t2 {
         return ret;
     }
     // Candidate 3 : Find the index i of point pi whose angle pi-1pipi+1 is maximized!
-    private static int cand3(ArrayList<Double> k_dist) {
-        int ret=0, n = k_dist.size();
+    private static int cand3(double[] k_dist) {
+        int ret=0, n = k_dist.length;
         double maxTan = 0.0, tan, a, b;
         for(int i=1,e=n-1;i<e;++i) {
             // Use the tangent subtraction law: a-b/(1+ab)
-            a = k_dist.get(i-1)-k_dist.get(i);
-            b = k_dist.get(i)-k_dist.get(i+1);
+            a = k_dist[i-1]-k_dist[i];
+            b = k_dist[i]-k_dist[i+1];
             tan = (a-b) / (1+a*b);
             if(maxTan<tan) {
                 maxTan = tan;
@@ -165,11 +1147,11 @@ public class A2_G13_t2 {
         return ret;
     }
     // Candidate 4 : Find the index i of point pi whose slope ratio slope(pi-1pi)/slope(pipi+1) is maximized!
-    private static int cand4(ArrayList<Double> k_dist) {
-        int ret=0, n = k_dist.size();
+    private static int cand4(double[] k_dist) {
+        int ret=0, n = k_dist.length;
         double maxRatio = 0.0, ratio;
         for(int i=1,e=n-1;i<e;++i) {
-            ratio = (k_dist.get(i-1)-k_dist.get(i))/(k_dist.get(i)-k_dist.get(i+1));
+            ratio = (k_dist[i-1]-k_dist[i])/(k_dist[i]-k_dist[i+1]);
             if(maxRatio<ratio) {
                 maxRatio = ratio;
                 ret = i;
@@ -179,34 +1161,20 @@ public class A2_G13_t2 {
     }
 
     // returns the k-dist values sorted in monotonically decreasing order.
-    private static ArrayList<Double> getKdists(final Collection<Point> db, int k) {
-        ArrayList<Double> ret = new ArrayList<>();
-        double kd;
-        int idx;
-        for(Point p: db) {
-            kd = kDist(db, p, k);
-            idx = binarySearch(ret, kd, Comparator.reverseOrder());
-            ret.add(idx<0?~idx:idx, kd);
+    // The points are independent queries on the index, so they run in parallel, and the curve is sorted once at the end.
+    private static double[] getKdists(int k) {
+        double[] ret = new double[n];
+        KnnIndex tree = spatialIndex();
+        IntStream.range(0, n).parallel().forEach(p -> ret[p] = tree.kDist(p, k));
+        Arrays.sort(ret);
+        for(int i=0,j=n-1;i<j;++i,--j) {
+            double t = ret[i];
+            ret[i] = ret[j];
+            ret[j] = t;
         }
         return ret;
     }
 
-    // returns the k-dist value of a point p. Here, we consider the points including p itself as possible neighbors, so this is, 'technically', 'k-1'-dist.
-    private static double kDist(final Collection<Point> db, Point p, int k) {
-        ArrayList<Double> dists = new ArrayList<>();
-        int cnt=0, idx;
-        double d;
-        for(Point q: db) {
-            d = Point.dist(p, q);
-            idx = binarySearch(dists, d);
-            dists.add(idx<0?~idx:idx, d);
-            if(cnt++>=k) {
-                dists.remove(k);
-            }
-        }
-        return dists.get(k-1);
-    }
-
     // Conducting the experiment!
     public static void multiRun(String[] args) throws Exception {
         File file;
@@ -221,26 +1189,22 @@ public class A2_G13_t2 {
 
                     readFile(path, isExample);
                     int mu = dim<<1;
-                    Set<Point> data = database.values().stream().reduce(new HashSet<>(), (a, b) -> {
-                        a.addAll(b);
-                        return a;
-                    });
-
-                    List<Double> epsList = epsEstimates(data, mu);
-                    List<List<Integer>> confMatrix = epsList.stream()
-                            .map(eps->getConfusion(database.values(), dbscan(data, eps, mu)))
+
+                    List<Double> epsList = epsEstimates(mu);
+                    List<long[]> confMatrix = epsList.stream()
+                            .map(eps->getConfusion(dbscan(eps, mu)))
                             .collect(Collectors.toList());
 
                     List<Double> accs = confMatrix.stream().map(confusion->{
                         // Evaluation
-                        int tp = confusion.get(0), fp = confusion.get(1), tn = confusion.get(2), fn = confusion.get(3);
+                        long tp = confusion[0], fp = confusion[1], tn = confusion[2], fn = confusion[3];
                         return (double)(tp+tn)/(tp+fp+tn+fn);
                     }).collect(Collectors.toList());
                     accMatrix.add(accs);
 
                     List<Double> precs = confMatrix.stream().map(confusion->{
                         // Evaluation
-                        int tp = confusion.get(0), fp = confusion.get(1), tn = confusion.get(2), fn = confusion.get(3);
+                        long tp = confusion[0], fp = confusion[1], tn = confusion[2], fn = confusion[3];
                         return (double)(tp)/(tp+fp);
                     }).collect(Collectors.toList());
                     precMatrix.add(precs);
@@ -298,6 +1262,15 @@ public class A2_G13_t2 {
     }
 
     public static void main(String[] args) throws Exception {
+        // options first, the rest is positional
+        List<String> rest = new ArrayList<>();
+        for(int i=0;i<args.length;++i) {
+            if(args[i].equals("--labels")) labeling = args[++i];
+            else if(args[i].equals("--graph-free")) graphFree = true;
+            else if(args[i].equals("--incremental")) incremental = true;
+            else rest.add(args[i]);
+        }
+        args = rest.toArray(new String[0]);
         boolean isTest = Objects.equals(args[0], "-test");
         if(isTest) {
             multiRun(args);
@@ -311,7 +1284,7 @@ public class A2_G13_t2 {
     private static void singleRun(String[] args) throws Exception {
         String path = args[0];
         boolean isExample = path.substring(path.lastIndexOf('/')+1).startsWith("art") && path.endsWith(".csv");
-        Map<Point, String> names = readFile(path, isExample);
+        String[] names = readFile(path, isExample);
         // This is the boolean of whether it is originated from the given example datasets.
 
         int mu = 0;
@@ -338,10 +1311,6 @@ public class A2_G13_t2 {
                 mu = Integer.parseInt(args[2]);
             }
         }
-        Set<Point> data = database.values().stream().reduce(new HashSet<>(), (a, b) -> {
-            a.addAll(b);
-            return a;
-        });
         if(mu == 0) {
             mu = dim<<1;
             System.out.println("Estimated MinPts : "+mu);
@@ -353,27 +1322,25 @@ public class A2_G13_t2 {
 //            eps = epsEstimates(data, mu).get(3); // result: acc: 8.77%(very shocking) for boxes3
             // 60~% for the given dataset,
             // 1
-            eps = epsEstimates(data, mu).get(0);
+            eps = epsEstimates(mu).get(0);
             System.out.println("Estimated eps: "+eps);
         }
-        runAndEvaluate(data, mu, eps, names, true);
+        runAndEvaluate(mu, eps, names, true);
     }
 
-    // Reads the csv file.
-    private static Map<Point, String> readFile(String path, boolean isExample) throws Exception {
+    // Reads the csv file. Returns the names of the points for the given examples, null otherwise.
+    private static String[] readFile(String path, boolean isExample) throws Exception {
         // This is the boolean of whether it is originated from the given example datasets.
-        Map<Point, String> names = new HashMap<>();
-        database.clear();
+        List<String> names = new ArrayList<>();
+        n = 0;
+        classes.clear();
+        index = null;
         // Input
         if(isExample) {
             if(getExamples(path, names)) {
 
 //                System.out.println("Data read successfully!");
-//                int i=0;
-//                for(Map.Entry<Point, String> entry: names.entrySet()) {
-//                    System.out.println(entry.getKey() + " - " + entry.getValue());
-//                    if(i++>=5) break;
-//                }
+//                for(int i=0;i<5;++i) System.out.println(names.get(i) + " - " + truth[i]);
 
             }
             else {
@@ -390,27 +1357,35 @@ public class A2_G13_t2 {
                 System.out.println("Data NOT read!");
                 throw new Exception("Data NOT read!");
             }
+            return null;
         }
-        return names;
+        return names.toArray(new String[0]);
     }
 
-    private static void runAndEvaluate(Set<Point> data, int mu, double eps, Map<Point, String> names, boolean export) throws IOException {
+    private static void runAndEvaluate(int mu, double eps, String[] names, boolean export) throws IOException {
 
-//        System.out.println("size of data: "+data.size());
+//        System.out.println("size of data: "+n);
 
-        ArrayList<Set<Point>> clusters = dbscan(data, eps, mu);
+        int[] labels;
+        if(incremental || graphFree) labels = dbscan(eps, mu);
+        else {
+            SpatialIndex idx = rangeIndex(eps);
+            BitSet corePoints = getCores(idx, eps, mu);
+            Graph graph = makeGraph(idx, eps, corePoints, false);
+            System.err.printf("Graph : %d edges, %d bytes (%d core points)%n", graph.edges(), graph.bytes(), corePoints.cardinality());
+            labels = dbscan(graph, corePoints);
+        }
+        int clusters = clusterCount(labels);
 
-        System.out.printf("Number of clusters : %d\n", clusters.size());
+        System.out.printf("Number of clusters : %d\n", clusters);
         System.out.printf("Number of noise : %d%n",
-                clusters.stream()
-                        .mapToInt(Set::size)
-                        .sum());
-        if(!names.isEmpty()) { // as isExample
-            ArrayList<List<String>> clusterLabels = clusters.stream()
-                    .map(cluster -> cluster.stream()
-                            .map(p -> names.get(p)) // Replace each identifier with its corresponding name
-                            .collect(Collectors.toList())) // Collect names into a List to form a transformed cluster
-                    .collect(Collectors.toCollection(ArrayList::new)); // Collect transformed clusters into an ArrayList
+                Arrays.stream(labels)
+                        .filter(label -> label != NOISE)
+                        .count());
+        if(names != null) { // as isExample
+            ArrayList<List<String>> clusterLabels = new ArrayList<>();
+            for(int i=0;i<clusters;++i) clusterLabels.add(new ArrayList<>());
+            for(int p=0;p<n;++p) if(labels[p] != NOISE) clusterLabels.get(labels[p]).add(names[p]); // Replace each identifier with its corresponding name
 
             sortCollectionOfLists(clusterLabels);
 
@@ -424,58 +1399,48 @@ public class A2_G13_t2 {
 
         // Evaluation
 
-        List<Integer> confusion = getConfusion(database.values(), clusters);
-        int tp = confusion.get(0), fp = confusion.get(1), tn = confusion.get(2), fn = confusion.get(3);
-        System.out.println("TP: " + confusion.get(0) + ", FP: " + confusion.get(1) + ", TN: " + confusion.get(2) + ", FN: " + confusion.get(3));
+        long[] confusion = getConfusion(labels);
+        long tp = confusion[0], fp = confusion[1], tn = confusion[2], fn = confusion[3];
+        System.out.println("TP: " + tp + ", FP: " + fp + ", TN: " + tn + ", FN: " + fn);
         System.out.printf("Accuracy: %d/%d (%.3f%%) \n", tp+tn, tp+fp+tn+fn, 100*(double)(tp+tn)/(tp+fp+tn+fn));
 
 //        if(export) {
-//            exportToCSV(clusters, "output.csv");
+//            exportToCSV(labels, "output.csv");
 //            System.out.println("Cluster Data exported successfully.");
 //        }
     }
 
-    public static void exportToCSV(ArrayList<Set<Point>> clusters, String filePath) throws IOException {
-        Map<Point, Integer> pointToClusterId = buildMap(clusters);
+    public static void exportToCSV(int[] labels, String filePath) throws IOException {
         try (FileWriter csvWriter = new FileWriter(filePath)) {
             // Write header
 //            csvWriter.append("X, Y, ClusterID\n");
 
-            // Write data
-            for (Map.Entry<Point, Integer> entry : pointToClusterId.entrySet()) {
-                Point p = entry.getKey();
-                Integer clusterId = entry.getValue();
-                csvWriter.append(String.valueOf(p.coord.get(0)))
+            // Write data, noise excluded
+            for (int p = 0; p < n; p++) {
+                if (labels[p] == NOISE) continue;
+                csvWriter.append(String.valueOf(coord[p*dim]))
                         .append(",")
-                        .append(String.valueOf(p.coord.get(1)))
+                        .append(String.valueOf(coord[p*dim+1]))
                         .append(",")
-                        .append(String.valueOf(clusterId))
+                        .append(String.valueOf(labels[p]))
                         .append("\n");
             }
         }
     }
 
     // Called for data from the given examples with additional label for each data (which is not necessary).
-    private static boolean getExamples(String path, Map<Point, String> names) {
+    private static boolean getExamples(String path, List<String> names) {
         String line;
         try (BufferedReader br = new BufferedReader(new FileReader(path))) {
             line = br.readLine();
             int idx = line.indexOf(','), lastidx = line.lastIndexOf(',');
-            String name = line.substring(0, idx);
-            ArrayList<Double> vals = Arrays.stream(line.substring(idx + 1, lastidx).split(",")).map(Double::parseDouble).collect(Collectors.toCollection(ArrayList::new));
-            dim = vals.size();
-            String id = line.substring(lastidx+1);
-            database.computeIfAbsent(id, k->new HashSet<>()).add(new Point(vals));
-            names.put(new Point(vals), name);
-            while ((line = br.readLine()) != null) {
+            dim = line.substring(idx + 1, lastidx).split(",").length;
+            do {
                 idx = line.indexOf(',');
                 lastidx = line.lastIndexOf(',');
-                name = line.substring(0, idx);
-                id = line.substring(lastidx+1);
-                vals = Arrays.stream(line.substring(idx + 1, lastidx).split(",")).map(Double::parseDouble).collect(Collectors.toCollection(ArrayList::new));
-                database.computeIfAbsent(id, k->new HashSet<>()).add(new Point(vals));
-                names.put(new Point(vals), name);
-            }
+                names.add(line.substring(0, idx));
+                addPoint(line.substring(idx + 1, lastidx), line.substring(lastidx+1));
+            } while ((line = br.readLine()) != null);
         } catch (IOException e) {
             e.printStackTrace();
             return false;
@@ -491,16 +1456,11 @@ public class A2_G13_t2 {
             line = br.readLine();
             line = br.readLine();
             int lastidx = line.lastIndexOf(',');
-            ArrayList<Double> vals = Arrays.stream(line.substring(0, lastidx).split(",")).map(Double::parseDouble).collect(Collectors.toCollection(ArrayList::new));
-            dim = vals.size();
-            String id = line.substring(lastidx+1);
-            database.computeIfAbsent(id, k->new HashSet<>()).add(new Point(vals));
-            while ((line = br.readLine()) != null) {
+            dim = line.substring(0, lastidx).split(",").length;
+            do {
                 lastidx = line.lastIndexOf(',');
-                id = line.substring(lastidx+1);
-                vals = Arrays.stream(line.substring(0, lastidx).split(",")).map(Double::parseDouble).collect(Collectors.toCollection(ArrayList::new));
-                database.computeIfAbsent(id, k->new HashSet<>()).add(new Point(vals));
-            }
+                addPoint(line.substring(0, lastidx), line.substring(lastidx+1));
+            } while ((line = br.readLine()) != null);
         } catch (IOException e) {
             e.printStackTrace();
             return false;
@@ -508,47 +1468,45 @@ public class A2_G13_t2 {
         return true;
     }
 
-    // The TP, FP, TN, FN result
-    private static List<Integer> getConfusion(final Collection<Set<Point>> ans, final Collection<Set<Point>> clusters) {
-        Map<Point, Integer> ansMap = buildMap(ans);
-        Map<Point, Integer> clusterMap = buildMap(clusters);
-
-        int tp = 0, fp = 0, tn = 0, fn = 0;
-
-        List<Point> points = new ArrayList<>();
-        for (Set<Point> set : ans) {
-            points.addAll(set);
+    // Appends the point with the given comma separated coordinates and 'actual' cluster.
+    private static void addPoint(String vals, String id) {
+        if(n == truth.length) {
+            truth = Arrays.copyOf(truth, Math.max(16, n<<1));
+            coord = Arrays.copyOf(coord, truth.length*dim);
         }
+        int from = 0;
+        for(int i=0;i<dim;++i) {
+            int to = vals.indexOf(',', from);
+            if(to < 0) to = vals.length();
+            coord[n*dim+i] = Double.parseDouble(vals.substring(from, to));
+            from = to+1;
+        }
+        truth[n++] = classes.computeIfAbsent(id, k->classes.size());
+    }
 
-        for (int i = 0, j, e=points.size(); i < e; i++) {
-            for (j = i + 1; j < e; j++) {
-                Point p = points.get(i);
-                Point q = points.get(j);
-
-                boolean sameAns = Objects.equals(ansMap.get(p), ansMap.get(q));
-                boolean sameCluster = Objects.equals(clusterMap.get(p), clusterMap.get(q)); //&& clusterMap.get(p)!=null;
-
-                if (sameCluster && sameAns) tp++;
-                if (sameCluster && !sameAns) fp++;
-                if (!sameCluster && !sameAns) tn++;
-                if (!sameCluster && sameAns) fn++;
-            }
+    // The TP, FP, TN, FN result over all pairs of points, where two noise points count as the same cluster.
+    // Counted from the contingency table of clusters (noise as one more) against the 'actual' clusters.
+    private static long[] getConfusion(int[] labels) {
+        int k = clusterCount(labels)+1, c = classes.size();
+        long[] table = new long[k*c], rows = new long[k], cols = new long[c];
+        for(int p=0;p<n;++p) {
+            int row = labels[p]+1; // noise goes to row 0
+            table[row*c+truth[p]]++;
+            rows[row]++;
+            cols[truth[p]]++;
         }
+        long tp = 0, sameCluster = 0, sameAns = 0;
+        for(long cnt: table) tp += pairs(cnt);
+        for(long cnt: rows) sameCluster += pairs(cnt);
+        for(long cnt: cols) sameAns += pairs(cnt);
+        long fp = sameCluster-tp, fn = sameAns-tp, tn = pairs(n)-tp-fp-fn;
 
-        return List.of(tp, fp, tn, fn);
+        return new long[]{tp, fp, tn, fn};
     }
 
-    // Literally, build a map that maps points to its arbitrarily given corresponding cluster id.
-    private static Map<Point, Integer> buildMap(Collection<Set<Point>> collection) {
-        Map<Point, Integer> pointToSetMap = new HashMap<>();
-        int setId = 0;
-        for (Set<Point> set : collection) {
-            for (Point p : set) {
-                pointToSetMap.put(p, setId);
-            }
-            setId++;
-        }
-        return pointToSetMap;
+    // Number of unordered pairs among cnt points.
+    private static long pairs(long cnt) {
+        return cnt*(cnt-1)/2;
     }
 
     // Sort the output of the results of the given example datasets.